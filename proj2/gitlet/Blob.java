@@ -1,55 +1,109 @@
 package gitlet;
 
 import java.io.File;
-import java.io.Serializable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A snapshot of one file's content.  The stored body of a blob is the raw
+ * file content, which is hashed and written in ObjectStore.BUFFER_SIZE
+ * pieces, so adding or checking out a file never buffers the whole file.
+ * Large files are stored in chunks shared between versions (see Chunker).
+ */
+public class Blob extends GitObject {
+    static final String TYPE = "blob";
 
-public class Blob extends GitObject implements Serializable {
-    // Not serialized
-    private static final File SAVE_DIR = Repository.OBJECT_DIR;
-
-    // Serialized
     private String UID;  // Unique Identifier
-    private File filePointer; // A pointer to the stored file on the disk
-    private String fileName;  // The file that blob object is pointing to
-
     private byte[] fileContent; // The actual file content
-    private final String TYPE = "blob";
-    // The same Blob object means the same fileName and the same content from filePointer
+    // The same Blob object means the same fileName and the same content
 
-    public Blob(File filePointer) {
-        this.filePointer = filePointer;
-        this.fileName = filePointer.getName();
-        this.fileContent = Utils.readContents(filePointer);
-        this.UID = this.generateID();
+    Blob(String UID, byte[] fileContent) {
+        this.UID = UID;
+        this.fileContent = fileContent;
     }
 
-    // no static here since we want to save a particular blob object
-    public void saveBlob() {
-        Utils.writeObject(Utils.join(SAVE_DIR, this.UID), this);
+    /**
+     * Compute the blob ID of a file without storing it
+     * @param filePointer A file in the working directory
+     * @return The SHA1 ID the file would be stored under
+     */
+    public static String hash(File filePointer) {
+        return digest(filePointer, null);
     }
 
+    /**
+     * Hash a file and store it as a blob in a single pass over its content
+     * @param filePointer A file in the working directory
+     * @return The SHA1 ID of the blob
+     */
+    public static String store(File filePointer) {
+        long length = filePointer.length();
+        if (Chunker.isChunked(length)) {
+            return storeChunked(filePointer);
+        }
+        ObjectStore.Writer writer = ObjectStore.newObject(TYPE, length);
+        String UID;
+        try {
+            UID = digest(filePointer, writer);
+        } catch (RuntimeException excp) {
+            writer.abort();
+            throw excp;
+        }
+        writer.finish(UID);
+        return UID;
+    }
 
     // static here since we don't have the Blob object in advance, so we need to
     // invoke the method from the Blob Class, requiring the method to be static
+    // The blob comes from the object cache when it has been read before,
+    // so its content must not be modified
     public static Blob fromFile(String UID) {
-        return Utils.readObject(Utils.join(SAVE_DIR, UID), Blob.class);
-    }
-
-    public byte[] getFileContent() {
-        return fileContent;
+        Blob blob = ObjectCache.get(UID, Blob.class);
+        if (blob != null) {
+            return blob;
+        }
+        try (ObjectStream in = ObjectStore.open(UID)) {
+            blob = new Blob(UID, in.readBody());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        ObjectCache.put(UID, blob, blob.fileContent.length);
+        return blob;
     }
 
-    public byte[] getFileBytes() {
-        return Utils.readContents(filePointer);
+    /**
+     * Write the content of blob UID to TARGET, streaming it from the store
+     * @param UID SHA1 ID of the blob
+     * @param target The file to be (over)written
+     */
+    public static void writeTo(String UID, File target) {
+        // Files of tracked subdirectories may be restored after their directory was removed
+        File parent = target.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        try (ObjectStream in = ObjectStore.open(UID);
+             OutputStream out = Files.newOutputStream(target.toPath())) {
+            in.transferTo(out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
     }
 
-    public void setFileContent(File fileContent) {
-        this.filePointer = fileContent;
+    public byte[] getFileContent() {
+        return fileContent;
     }
 
-    // Same Blob means the same content.
+    // Same Blob means the same content and file name. The name isn't part of
+    // the stored blob, so the ID can only be computed by hash or store.
     public String generateID() {
-        return Utils.sha1(fileContent, fileName, TYPE);
+        return UID;
     }
 
     public String getUID() {
@@ -69,4 +123,63 @@ public class Blob extends GitObject implements Serializable {
     public String toString() {
         return null;
     }
+
+    @Override
+    public void dump() {
+        System.out.printf("blob %s%nsize: %d%n", UID, fileContent.length);
+    }
+
+    /**
+     * Store a large file as a list of content-defined chunks, sharing the
+     * chunks that other blobs already stored
+     * @return The SHA1 ID of the blob, the same as for an unchunked blob
+     */
+    private static String storeChunked(File filePointer) {
+        MessageDigest md = newDigest();
+        byte[] list = Chunker.store(filePointer, md);
+        String UID = finishID(md, filePointer);
+        ObjectStore.writeObject(UID, Chunker.LIST_TYPE, list);
+        return UID;
+    }
+
+    /**
+     * Feed the content of FILEPOINTER through SHA-1 in fixed size pieces,
+     * passing every piece on to SINK as well if it's not null.
+     * The ID covers the content, the file name and the type, as it always has.
+     */
+    private static String digest(File filePointer, ObjectStore.Writer sink) {
+        try (FileChannel in = FileChannel.open(filePointer.toPath())) {
+            MessageDigest md = newDigest();
+            ByteBuffer buffer = ByteBuffer.allocate(ObjectStore.BUFFER_SIZE);
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                md.update(buffer.array(), 0, buffer.limit());
+                if (sink != null) {
+                    sink.write(buffer.array(), 0, buffer.limit());
+                }
+                buffer.clear();
+            }
+            return finishID(md, filePointer);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /**
+     * The blob ID from MD, which has been fed the content of FILEPOINTER
+     */
+    private static String finishID(MessageDigest md, File filePointer) {
+        md.update(filePointer.getName().getBytes(StandardCharsets.UTF_8));
+        md.update(TYPE.getBytes(StandardCharsets.UTF_8));
+        byte[] id = md.digest();
+        return Utils.bytesToHex(id, 0, id.length);
+    }
 }
@@ -0,0 +1,122 @@
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static gitlet.Utils.*;
+
+/**
+ * Brings the working directory from one snapshot to another by touching
+ * only the paths that differ between them.  Files are removed first (so a
+ * directory can replace a file and the other way around), then the new
+ * and changed files are written from their blobs.  Both steps run on a
+ * pool of checkout.workers threads (the number of processors by default),
+ * so a large checkout keeps every core and the disk busy.
+ *
+ * Every file written gets a fresh Track in the stage, and every file
+ * removed loses its Track.
+ *
+ *  @author AlexMan
+ */
+class Checkout {
+
+    /** Setting for the number of threads writing files. */
+    static final String WORKERS_KEY = "checkout.workers";
+
+    /**
+     * Apply CHANGES to the working directory
+     * @param changes path -> blob ID to write, or path -> null to delete the file
+     * @param stage The stage whose stat cache is updated, not saved here
+     */
+    static void apply(Map<String, String> changes, Stage stage) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        List<String> removed = new ArrayList<>();
+        List<String> written = new ArrayList<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            (change.getValue() == null ? removed : written).add(change.getKey());
+        }
+        int workers = Math.max(1, Math.min(changes.size(),
+                Config.getInt(WORKERS_KEY, Runtime.getRuntime().availableProcessors())));
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            // 1. Delete the files that are gone, then the directories they leave empty
+            List<Callable<Track>> deletions = new ArrayList<>();
+            for (String path : removed) {
+                deletions.add(() -> {
+                    join(Repository.CWD, path).delete();
+                    return null;
+                });
+            }
+            runAll(pool, deletions);
+            for (String path : removed) {
+                stage.getPathToTrack().remove(path);
+                pruneEmptyParents(path);
+            }
+            // 2. Write the new and changed files, recording their stat
+            List<Callable<Track>> writes = new ArrayList<>();
+            for (String path : written) {
+                String blobID = changes.get(path);
+                writes.add(() -> {
+                    File file = join(Repository.CWD, path);
+                    Blob.writeTo(blobID, file);
+                    Track track = Track.stat(file);
+                    if (track != null) {
+                        track.setBlobID(blobID);
+                    }
+                    return track;
+                });
+            }
+            List<Track> tracks = runAll(pool, writes);
+            for (int i = 0; i < written.size(); i += 1) {
+                if (tracks.get(i) != null) {
+                    stage.getPathToTrack().put(written.get(i), tracks.get(i));
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Run TASKS on POOL and wait for all of them
+     * @return The results, in the order of TASKS
+     */
+    private static List<Track> runAll(ExecutorService pool, List<Callable<Track>> tasks) {
+        List<Track> result = new ArrayList<>(tasks.size());
+        try {
+            for (Future<Track> future : pool.invokeAll(tasks)) {
+                result.add(future.get());
+            }
+        } catch (ExecutionException excp) {
+            throw error("Checkout failed: %s", excp.getCause().getMessage());
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw error("Checkout interrupted");
+        }
+        return result;
+    }
+
+    /**
+     * Remove the directories above the removed file PATH that are now
+     * empty, stopping at the working directory
+     */
+    private static void pruneEmptyParents(String path) {
+        File dir = join(Repository.CWD, path).getParentFile();
+        while (!dir.equals(Repository.CWD)) {
+            String[] left = dir.list();
+            if (left == null || left.length > 0 || !dir.delete()) {
+                return;
+            }
+            dir = dir.getParentFile();
+        }
+    }
+}
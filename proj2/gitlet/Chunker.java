@@ -0,0 +1,221 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Content-defined chunking of large blobs, so that versions of a big file
+ * that differ in a few places share almost all of their storage.
+ *
+ * A file of at least core.chunkThreshold bytes (1 MiB by default, -1 turns
+ * chunking off) is cut into chunks with FastCDC: a Gear rolling hash over
+ * the last 64 bytes decides where a chunk ends, so an edit only moves the
+ * boundaries right around it and every other chunk comes out the same as
+ * before.  Chunks are 16 KiB to 256 KiB, 64 KiB on average; a stricter
+ * mask before the average size and a looser one after it keep most chunks
+ * close to the average.  Each chunk is stored once, as a "chunk" object
+ * named by the SHA1 of its bytes, and the blob itself is a "chunklist"
+ * object under its usual blob ID, listing the chunks in order.
+ *
+ * Opening a chunk list from the store yields the blob's content, reading
+ * one chunk at a time, so nothing else needs to know a blob was chunked.
+ *
+ *  @author AlexMan
+ */
+class Chunker {
+
+    /** Type of a stored chunk. */
+    static final String TYPE = "chunk";
+    /** Type of the stored list of chunks of a blob. */
+    static final String LIST_TYPE = "chunklist";
+    /** Setting for the size from which blobs are chunked. */
+    static final String THRESHOLD_KEY = "core.chunkThreshold";
+
+    private static final long DEFAULT_THRESHOLD = 1L << 20;
+    private static final int MIN_SIZE = 16 << 10;
+    private static final int AVG_SIZE = 64 << 10;
+    private static final int MAX_SIZE = 256 << 10;
+    // Boundary masks on the top bits of the hash: 2 bits more than the average size
+    // before it, 2 bits fewer after it
+    private static final long MASK_S = -1L << (64 - 18);
+    private static final long MASK_L = -1L << (64 - 14);
+    // A random 64-bit value for every byte, fixed forever since it decides where chunks end
+    private static final long[] GEAR = new long[256];
+
+    static {
+        long seed = 0x676974_6c6574L;
+        for (int i = 0; i < GEAR.length; i += 1) {
+            // SplitMix64
+            seed += 0x9e3779b97f4a7c15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    /**
+     * Return whether a file of LENGTH bytes is stored in chunks
+     */
+    static boolean isChunked(long length) {
+        long threshold = Config.getLong(THRESHOLD_KEY, DEFAULT_THRESHOLD);
+        return threshold >= 0 && length >= threshold;
+    }
+
+    /**
+     * Cut FILE into chunks and store the ones that aren't stored yet
+     * @param file The file being stored as a blob
+     * @param content Digest every byte of the file is fed to, in order
+     * @return The body of the blob's chunk list
+     */
+    static byte[] store(File file, MessageDigest content) {
+        List<String> ids = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        byte[] buffer = new byte[2 * MAX_SIZE];
+        int start = 0;
+        int end = 0;
+        boolean eof = false;
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            while (true) {
+                // 1. Keep at least a whole chunk in the buffer while there's more to read
+                if (end - start < MAX_SIZE && !eof) {
+                    System.arraycopy(buffer, start, buffer, 0, end - start);
+                    end -= start;
+                    start = 0;
+                    while (end < buffer.length) {
+                        int n = in.read(buffer, end, buffer.length - end);
+                        if (n < 0) {
+                            eof = true;
+                            break;
+                        }
+                        end += n;
+                    }
+                }
+                if (start == end) {
+                    break;
+                }
+                // 2. Store the next chunk under the hash of its bytes
+                int length = cut(buffer, start, end);
+                byte[] chunk = Arrays.copyOfRange(buffer, start, start + length);
+                content.update(chunk);
+                String UID = Utils.sha1(chunk, TYPE);
+                ObjectStore.writeObject(UID, TYPE, chunk);
+                ids.add(UID);
+                lengths.add(length);
+                start += length;
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return Codec.encodeChunkList(ids, lengths);
+    }
+
+    /**
+     * Open a blob stored as a chunk list
+     * @param UID SHA1 ID of the blob
+     * @param list The opened chunk list object
+     * @return A stream of type blob over the content of all the chunks
+     */
+    static ObjectStream open(String UID, ObjectStream list) throws IOException {
+        byte[] body;
+        try (ObjectStream in = list) {
+            body = in.readBody();
+        }
+        List<String> ids = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        Codec.decodeChunkList(UID, body, ids, lengths);
+        long length = 0;
+        for (int chunkLength : lengths) {
+            length += chunkLength;
+        }
+        return new ObjectStream(Blob.TYPE, length, new ChunkStream(ids));
+    }
+
+    /**
+     * Find where the chunk starting at START ends
+     * @param buffer Bytes [start, end) of the file, all of the rest if
+     *               there's less than MAX_SIZE of them
+     * @return Length of the chunk
+     */
+    private static int cut(byte[] buffer, int start, int end) {
+        int available = end - start;
+        if (available <= MIN_SIZE) {
+            return available;
+        }
+        int normal = start + Math.min(available, AVG_SIZE);
+        int max = start + Math.min(available, MAX_SIZE);
+        long hash = 0;
+        // The first MIN_SIZE bytes can never end a chunk, so they aren't hashed
+        int i = start + MIN_SIZE;
+        for (; i < normal; i += 1) {
+            hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+            if ((hash & MASK_S) == 0) {
+                return i - start + 1;
+            }
+        }
+        for (; i < max; i += 1) {
+            hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+            if ((hash & MASK_L) == 0) {
+                return i - start + 1;
+            }
+        }
+        return max - start;
+    }
+
+    /**
+     * The chunks of a blob one after another, each opened only once the
+     * previous one has been read
+     */
+    private static class ChunkStream extends InputStream {
+        private final List<String> ids;
+        private int next;
+        private InputStream current;
+
+        ChunkStream(List<String> ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                if (current == null) {
+                    if (next == ids.size()) {
+                        return -1;
+                    }
+                    current = ObjectStore.open(ids.get(next));
+                    next += 1;
+                }
+                int n = current.read(b, off, len);
+                if (n >= 0) {
+                    return n;
+                }
+                current.close();
+                current = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+            next = ids.size();
+        }
+    }
+}
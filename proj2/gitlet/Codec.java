@@ -0,0 +1,289 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/**
+ * The on-disk encoding of commits and of the staging area.  Everything is
+ * written field by field, so the format doesn't depend on the layout of
+ * the classes and decoding doesn't go through reflection.
+ *
+ * Integers are LEB128 varints (zigzag encoded if they may be negative),
+ * strings are a varint length and the UTF-8 bytes, SHA1 IDs are their 20
+ * raw bytes and maps are a varint count followed by the entries in key
+ * order.
+ *
+ * commit: message, commit time in seconds, parent IDs, root tree ID
+ * tree:   (kind, name, ID) of every entry in name order, kind is 1 for a
+ *         file (blob ID) and 2 for a directory (tree ID)
+ * chunks: number of chunks, then (ID, length) of every chunk in order
+ * stage:  "GSTG", version, (path, blob ID) map of files staged for addition,
+ *         (path, blob ID) map of files staged for removal,
+ *         (path, blob ID, size, mtime, ctime, inode, checked at) stat cache
+ *
+ *  @author AlexMan
+ */
+class Codec {
+
+    private static final byte[] STAGE_MAGIC = {'G', 'S', 'T', 'G'};
+    private static final int STAGE_VERSION = 1;
+    // Kinds of tree entries
+    private static final byte BLOB_ENTRY = 1;
+    private static final byte TREE_ENTRY = 2;
+
+    /**
+     * Encode the body of a commit object
+     */
+    static byte[] encodeCommit(Commit commit) {
+        Encoder out = new Encoder();
+        out.writeString(commit.getMessage());
+        out.writeVarint(Commit.parseTimestamp(commit.getTimestamp()));
+        out.writeVarint(commit.getParentID().size());
+        for (String parent : commit.getParentID()) {
+            out.writeID(parent);
+        }
+        out.writeID(commit.getTreeID());
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode the body of the commit object UID
+     */
+    static Commit decodeCommit(String UID, byte[] body) {
+        Decoder in = new Decoder(body);
+        Commit commit = new Commit();
+        commit.setUID(UID);
+        commit.setMessage(in.readString());
+        commit.setTimestamp(Commit.formatTimestamp(in.readVarint()));
+        int numParents = (int) in.readVarint();
+        List<String> parentID = new ArrayList<>(numParents);
+        for (int i = 0; i < numParents; i += 1) {
+            parentID.add(in.readID());
+        }
+        commit.setParentID(parentID);
+        commit.setTreeID(in.readID());
+        return commit;
+    }
+
+    /**
+     * Encode the body of a tree object
+     */
+    static byte[] encodeTree(Tree tree) {
+        Encoder out = new Encoder();
+        out.writeVarint(tree.getEntries().size());
+        for (Map.Entry<String, Tree.Entry> entry : tree.getEntries().entrySet()) {
+            out.write(entry.getValue().isTree ? TREE_ENTRY : BLOB_ENTRY);
+            out.writeString(entry.getKey());
+            out.writeID(entry.getValue().UID);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode the body of the tree object UID
+     */
+    static Tree decodeTree(String UID, byte[] body) {
+        Decoder in = new Decoder(body);
+        int size = (int) in.readVarint();
+        TreeMap<String, Tree.Entry> entries = new TreeMap<>();
+        for (int i = 0; i < size; i += 1) {
+            byte kind = in.readByte();
+            if (kind != BLOB_ENTRY && kind != TREE_ENTRY) {
+                throw error("Corrupt tree %s", UID);
+            }
+            String name = in.readString();
+            entries.put(name, new Tree.Entry(kind == TREE_ENTRY, in.readID()));
+        }
+        return new Tree(UID, entries);
+    }
+
+    /**
+     * Encode the body of a chunk list, the chunks of a large blob in order
+     */
+    static byte[] encodeChunkList(List<String> ids, List<Integer> lengths) {
+        Encoder out = new Encoder();
+        out.writeVarint(ids.size());
+        for (int i = 0; i < ids.size(); i += 1) {
+            out.writeID(ids.get(i));
+            out.writeVarint(lengths.get(i));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode the body of the chunk list of blob UID into IDS and LENGTHS
+     */
+    static void decodeChunkList(String UID, byte[] body, List<String> ids, List<Integer> lengths) {
+        Decoder in = new Decoder(body);
+        int size = (int) in.readVarint();
+        for (int i = 0; i < size; i += 1) {
+            ids.add(in.readID());
+            lengths.add((int) in.readVarint());
+        }
+        if (in.hasRemaining()) {
+            throw error("Corrupt chunk list %s", UID);
+        }
+    }
+
+    /**
+     * Encode the staging area, as stored in .gitlet/index
+     */
+    static byte[] encodeStage(Stage stage) {
+        Encoder out = new Encoder();
+        out.writeBytes(STAGE_MAGIC);
+        out.writeVarint(STAGE_VERSION);
+        out.writeIDMap(stage.getPathToBlobIDAddition());
+        out.writeIDMap(stage.getPathToBlobIDRemoval());
+        Map<String, Track> tracks = new TreeMap<>(stage.getPathToTrack());
+        out.writeVarint(tracks.size());
+        for (Map.Entry<String, Track> entry : tracks.entrySet()) {
+            Track track = entry.getValue();
+            out.writeString(entry.getKey());
+            out.writeID(track.getBlobID());
+            out.writeVarint(track.getSize());
+            out.writeSignedVarint(track.getMtime());
+            out.writeSignedVarint(track.getCtime());
+            out.writeSignedVarint(track.getInode());
+            out.writeSignedVarint(track.getCheckedAt());
+        }
+        return out.toByteArray();
+    }
+
+    static Stage decodeStage(byte[] data) {
+        Decoder in = new Decoder(data);
+        for (byte b : STAGE_MAGIC) {
+            if (in.readByte() != b) {
+                throw error("Corrupt index");
+            }
+        }
+        if (in.readVarint() != STAGE_VERSION) {
+            throw error("Unsupported index version");
+        }
+        Stage stage = new Stage();
+        stage.setPathToBlobIDAddition(in.readIDMap());
+        stage.setPathToBlobIDRemoval(in.readIDMap());
+        int numTracks = (int) in.readVarint();
+        for (int i = 0; i < numTracks; i += 1) {
+            String path = in.readString();
+            Track track = new Track(in.readID(), in.readVarint(), in.readSignedVarint(),
+                    in.readSignedVarint(), in.readSignedVarint(), in.readSignedVarint());
+            stage.getPathToTrack().put(path, track);
+        }
+        return stage;
+    }
+
+    /**
+     * Appends encoded fields to a growing byte array
+     */
+    static class Encoder extends ByteArrayOutputStream {
+
+        void writeVarint(long value) {
+            while ((value & ~0x7fL) != 0) {
+                write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        /** Zigzag encoding, so small negative numbers stay short too. */
+        void writeSignedVarint(long value) {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        void writeID(String UID) {
+            write(hexToBytes(UID), 0, UID_BYTES);
+        }
+
+        void writeIDMap(Map<String, String> map) {
+            Map<String, String> sorted = new TreeMap<>(map);
+            writeVarint(sorted.size());
+            for (Map.Entry<String, String> entry : sorted.entrySet()) {
+                writeString(entry.getKey());
+                writeID(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Reads encoded fields back in the order they were written
+     */
+    static class Decoder {
+        private final ByteBuffer in;
+
+        Decoder(byte[] data) {
+            this.in = ByteBuffer.wrap(data);
+        }
+
+        byte readByte() {
+            try {
+                return in.get();
+            } catch (BufferUnderflowException excp) {
+                throw error("Truncated object");
+            }
+        }
+
+        long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw error("Corrupt varint");
+        }
+
+        long readSignedVarint() {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        String readString() {
+            byte[] bytes = readBytes((int) readVarint());
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        String readID() {
+            return bytesToHex(readBytes(UID_BYTES), 0, UID_BYTES);
+        }
+
+        Map<String, String> readIDMap() {
+            int size = (int) readVarint();
+            Map<String, String> map = new HashMap<>(Math.max(16, size * 4 / 3 + 1));
+            for (int i = 0; i < size; i += 1) {
+                String key = readString();
+                map.put(key, readID());
+            }
+            return map;
+        }
+
+        byte[] readBytes(int length) {
+            if (length > in.remaining()) {
+                throw error("Truncated object");
+            }
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            return bytes;
+        }
+
+        boolean hasRemaining() {
+            return in.hasRemaining();
+        }
+    }
+}
@@ -3,7 +3,8 @@ package gitlet;
 // TODO: any imports you need here
 
 import java.io.File;
-import java.io.Serializable;
+import java.text.ParseException;
+import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
@@ -13,9 +14,7 @@ import java.util.*;
  *
  *  @author AlexMan
  */
-public class Commit extends GitObject implements Serializable {
-
-    private static final File savePath = Repository.OBJECT_DIR;
+public class Commit extends GitObject {
 
     /**
      * TODO: add instance variables here.
@@ -29,15 +28,19 @@ public class Commit extends GitObject implements Serializable {
     private String timestamp;
     // Unique Identifier
     private String UID;
-    // Maps from filepath to blobID
-    private Map<String, String> pathToBlob = new HashMap<>();
+    // SHA1 ID of the root tree, the snapshot of the working directory
+    private String treeID = Tree.EMPTY_ID;
+    // Maps from filepath to blobID, expanded from the tree on first use
+    private Map<String, String> pathToBlob;
+    // Rough memory of a pathToBlob entry on top of its two strings' characters
+    private static final long MAPPING_OVERHEAD = 96;
     // All parents' ID of current Commit Object, could be more than one when merging happens
     // Important Note: Here we don't store the pointer to parent object
     // Instead we store SHAIDs' for parent Commit Object to avoid
     // Seralization Problem.
     private List<String> parentID;
     // Used to distinguish between commit and blob
-    private final String TYPE = "commit";
+    static final String TYPE = "commit";
 
     /** The message of this Commit, specified by the user */
     private String message;
@@ -53,20 +56,85 @@ public class Commit extends GitObject implements Serializable {
         this.parentID = parentID;
         // 如果没有Parent
         if (this.parentID.size() == 0) {
-            // EEE MMM d HH:mm:ss yyyy Z format, for gradescope
-            SimpleDateFormat sdf = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z", Locale.US);
-            sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
-            Date date = new Date(0L);
-            this.timestamp = sdf.format(date);
+            this.timestamp = formatTimestamp(0L);
         } else {
-            SimpleDateFormat sdf = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z", Locale.US);
-            sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
-            Date date = new Date();
-            this.timestamp = sdf.format(date);
+            this.timestamp = formatTimestamp(System.currentTimeMillis() / 1000);
         }
         this.UID = this.generateID();
     }
 
+    /**
+     * An empty commit, filled in by Codec when reading a commit back
+     */
+    Commit() {
+    }
+
+
+    /**
+     * Format a commit time the way it's printed by log
+     * @param seconds Seconds since the epoch
+     * @return i.e. "Thu Jan 1 00:00:00 1970 +0000"
+     */
+    public static String formatTimestamp(long seconds) {
+        // EEE MMM d HH:mm:ss yyyy Z format, for gradescope
+        SimpleDateFormat sdf = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z", Locale.US);
+        sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return sdf.format(new Date(seconds * 1000));
+    }
+
+    /**
+     * Read a date given on the command line, in UTC like the timestamps
+     * @param date i.e. "2017-11-09" or "2017-11-09 20:00:05"
+     * @return Seconds since the epoch
+     */
+    public static long parseDate(String date) {
+        for (String pattern : new String[] {"yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd"}) {
+            SimpleDateFormat sdf = new SimpleDateFormat(pattern, Locale.US);
+            sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+            sdf.setLenient(false);
+            ParsePosition position = new ParsePosition(0);
+            Date parsed = sdf.parse(date, position);
+            if (parsed != null && position.getIndex() == date.length()) {
+                return parsed.getTime() / 1000;
+            }
+        }
+        throw Utils.error("Invalid date: %s", date);
+    }
+
+    /**
+     * Inverse of formatTimestamp
+     * @param timestamp i.e. "Thu Jan 1 00:00:00 1970 +0000"
+     * @return Seconds since the epoch
+     */
+    public static long parseTimestamp(String timestamp) {
+        SimpleDateFormat sdf = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z", Locale.US);
+        try {
+            return sdf.parse(timestamp).getTime() / 1000;
+        } catch (ParseException excp) {
+            throw new IllegalArgumentException("Bad timestamp " + timestamp);
+        }
+    }
+
+    /**
+     * The text printed by log for a commit, everything below the "===" line
+     * @param UID SHA1 ID of the commit
+     * @param parentID SHA1 IDs of its parents
+     * @param timestamp Formatted commit time
+     * @param message Commit message
+     */
+    public static String describe(String UID, List<String> parentID, String timestamp, String message) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("commit " + UID + "\r\n");
+        if (parentID.size() > 1) {
+            // Merge commits show the first seven digits of both parents
+            sb.append("Merge: " + parentID.get(0).substring(0, 7) + " " + parentID.get(1).substring(0, 7));
+            sb.append("\r\n");
+        }
+        sb.append("Date: " + timestamp + "\r\n");
+        sb.append(message);
+        return sb.toString();
+    }
+
 
     /**
      * Get the blob SHAID from the filename specified
@@ -74,8 +142,9 @@ public class Commit extends GitObject implements Serializable {
      * @return The Blob SHA1 ID, if doesn't exist, return null
      */
     public String getBlobFromFileName(String filename) {
-        if (this.pathToBlob.containsKey(filename)) {
-            return this.pathToBlob.get(filename);
+        String blobID = pathToBlob != null ? pathToBlob.get(filename) : Tree.lookup(treeID, filename);
+        if (blobID != null) {
+            return blobID;
         } else {
             System.out.println("File does not exist in that commit.");
             return null;
@@ -84,20 +153,33 @@ public class Commit extends GitObject implements Serializable {
 
 
     /**
-     * Serialize current commit object to the specified savePath
+     * Serialize current commit object to the object store, and record it
+     * in the commit graph, the message index and the path filters
      */
     public void saveCommit() {
-        Utils.writeObject(Utils.join(savePath, this.UID), this);
+        ObjectStore.writeObject(this.UID, TYPE, Codec.encodeCommit(this));
+        CommitGraph graph = CommitGraph.load();
+        graph.add(this);
+        MessageIndex.update(graph);
+        PathFilter.update(graph);
     }
 
 
     /**
-     * Deserialize the commit object given its SHA1ID
+     * Decode the commit object given its SHA1ID, or take it from the
+     * object cache.  The commit is shared, use copyFromCommit to derive a
+     * new one.
      * @param UID SHA1 ID of the commit object
      * @return A commit object with SHA1 ID
      */
     public static Commit fromFile(String UID) {
-        return Utils.readObject(Utils.join(savePath, UID), Commit.class);
+        Commit commit = ObjectCache.get(UID, Commit.class);
+        if (commit == null) {
+            byte[] body = ObjectStore.readBody(UID, TYPE);
+            commit = Codec.decodeCommit(UID, body);
+            ObjectCache.put(UID, commit, body.length);
+        }
+        return commit;
     }
 
     /**
@@ -105,16 +187,18 @@ public class Commit extends GitObject implements Serializable {
      * @return The generated SHA1 ID of current commit object
      */
     public String generateID() {
-        // SHA1 ID uniquely determined by (timestamp, pathToBlob, parentID, TYPE)
-        return Utils.sha1(pathToBlob.toString(), parentID.toString(), message, TYPE, timestamp);
+        // SHA1 ID uniquely determined by (timestamp, treeID, parentID, TYPE)
+        return Utils.sha1(treeID, parentID.toString(), message, TYPE, timestamp);
     }
 
     /**
-     * Copy fileMapping from the given commit
+     * Copy fileMapping from the given commit.  Only the root tree ID is
+     * copied, the trees themselves are shared.
      * @param commit
      */
     public void copyFromCommit(Commit commit) {
-        this.pathToBlob = commit.getPathToBlob();
+        this.treeID = commit.getTreeID();
+        this.pathToBlob = null;
     }
 
 
@@ -123,7 +207,17 @@ public class Commit extends GitObject implements Serializable {
      * @param index
      */
     public void copyFromParent(int index) {
-        this.pathToBlob = Commit.fromFile(this.parentID.get(index)).getPathToBlob();
+        copyFromCommit(Commit.fromFile(this.parentID.get(index)));
+    }
+
+    /**
+     * Apply staged changes on top of the current snapshot, storing the
+     * directories they touch as new trees
+     * @param changes path -> new blob ID, or path -> null to remove the file
+     */
+    public void applyChanges(Map<String, String> changes) {
+        this.treeID = Tree.update(this.treeID, changes);
+        this.pathToBlob = null;
     }
 
 
@@ -145,12 +239,32 @@ public class Commit extends GitObject implements Serializable {
         this.UID = UID;
     }
 
+    /**
+     * The path -> blob ID mapping of every file in this commit, expanded
+     * from its tree the first time it's asked for.  Changes to the
+     * returned map are not saved, use applyChanges instead.  When this
+     * commit is the one in the object cache, the map is charged to its
+     * entry, since it stays around for as long as the commit is cached.
+     */
     public Map<String, String> getPathToBlob() {
+        if (pathToBlob == null) {
+            pathToBlob = Tree.flatten(treeID);
+            long size = 0;
+            for (Map.Entry<String, String> entry : pathToBlob.entrySet()) {
+                size += entry.getKey().length() + entry.getValue().length() + MAPPING_OVERHEAD;
+            }
+            ObjectCache.charge(UID, this, size);
+        }
         return pathToBlob;
     }
 
-    public void setPathToBlob(Map<String, String> pathToBlob) {
-        this.pathToBlob = pathToBlob;
+    public String getTreeID() {
+        return treeID;
+    }
+
+    public void setTreeID(String treeID) {
+        this.treeID = treeID;
+        this.pathToBlob = null;
     }
 
     public List<String> getParentID() {
@@ -176,14 +290,11 @@ public class Commit extends GitObject implements Serializable {
 
     @Override
     public String toString() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("commit " + this.UID + "\r\n");
-        if (this.parentID.size() > 1) {
-            sb.append("Merge: " + this.parentID.get(0)+ " " + this.parentID.get(1));
-            sb.append("\r\n");
-        }
-        sb.append("Date: " + this.timestamp + "\r\n");
-        sb.append(message);
-        return sb.toString();
+        return describe(this.UID, this.parentID, this.timestamp, this.message);
+    }
+
+    @Override
+    public void dump() {
+        System.out.printf("%s%ntree: %s%n", this, treeID);
     }
 }
@@ -0,0 +1,416 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import static gitlet.Utils.*;
+
+/**
+ * The commit graph, a fixed-width binary table with one row per commit so
+ * that history walks never have to deserialize a commit object.
+ *
+ * commit-graph:    "GCGR", version, then one ROW_SIZE row per commit:
+ *                  raw SHA1 ID (20), first parent row (4), second parent
+ *                  row (4), generation number (4), commit time in seconds
+ *                  (8), offset of the message in commit-messages (8).
+ *                  A missing parent is stored as -1.
+ * commit-messages: for every commit, the message length (4) and the UTF-8
+ *                  bytes of the message.
+ *
+ * Rows are only ever appended, and a commit is appended after its parents,
+ * so parent rows always point backwards.  The message goes in before the
+ * row, so an interrupted append only leaves unused bytes: a partial last
+ * row, or a row whose message is cut short, is cut off when the graph is
+ * next loaded (under the repository lock), along with the indexes of graph
+ * rows, which are then rebuilt.  The generation number of a commit
+ * is one more than the largest generation of its parents (the initial commit
+ * has generation 1); a commit can never be an ancestor of a commit with a
+ * smaller or equal generation number other than itself.
+ *
+ *  @author AlexMan
+ */
+class CommitGraph {
+
+    static final File GRAPH_FILE = join(Repository.GITLET_DIR, "commit-graph");
+    static final File MESSAGE_FILE = join(Repository.GITLET_DIR, "commit-messages");
+
+    private static final byte[] MAGIC = {'G', 'C', 'G', 'R'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    static final int ROW_SIZE = 48;
+    private static final int PARENT1 = 20;
+    private static final int PARENT2 = 24;
+    private static final int GENERATION = 28;
+    private static final int TIME = 32;
+    private static final int MESSAGE = 40;
+
+    // Paint of the commits reached from each side while looking for a merge base
+    private static final byte FROM_CURRENT = 1;
+    private static final byte FROM_GIVEN = 2;
+    private static final int MAX_CACHED_BASES = 1024;
+    // Merge bases by the IDs of the two commits, the least recently used dropped first
+    private static final Map<String, String> MERGE_BASES = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_CACHED_BASES;
+        }
+    };
+
+    // The rows of the graph file, without the header
+    private ByteBuffer rows;
+    private ByteBuffer messages;
+    private int size;
+    // Sorted index of the commit IDs, opened on first lookup
+    private CommitIndex ids;
+
+    private CommitGraph() {
+    }
+
+    /**
+     * Read the commit graph of the repository, building it from the commit
+     * objects if the file is missing, as it is once gc removed commits.
+     */
+    static CommitGraph load() {
+        CommitGraph graph = new CommitGraph();
+        if (!GRAPH_FILE.exists()) {
+            // Indexes of graph rows refer to the old graph
+            CommitIndex.INDEX_FILE.delete();
+            MessageIndex.INDEX_FILE.delete();
+            PathFilter.INDEX_FILE.delete();
+            writeContents(GRAPH_FILE, MAGIC, new byte[] {0, 0, 0, VERSION});
+            writeContents(MESSAGE_FILE, new byte[0]);
+            graph.map();
+            for (String UID : ObjectStore.objectIDs()) {
+                if (ObjectStore.getType(UID).equals("commit")) {
+                    graph.add(Commit.fromFile(UID));
+                }
+            }
+        } else {
+            graph.map();
+        }
+        return graph;
+    }
+
+    /**
+     * Number of commits in the graph
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Find the row of a commit
+     * @param UID SHA1 ID of the commit
+     * @return The row of the commit, -1 if it's not in the graph
+     */
+    int indexOf(String UID) {
+        return getIndex().rowOf(UID);
+    }
+
+    /**
+     * The sorted index of the commit IDs in this graph
+     */
+    CommitIndex getIndex() {
+        if (ids == null) {
+            ids = CommitIndex.load(this);
+        }
+        return ids;
+    }
+
+    /**
+     * Find the row of a commit, adding the commit (and any of its ancestors
+     * that are missing) to the graph if it's not there yet.
+     * @param UID SHA1 ID of an existing commit
+     * @return The row of the commit
+     */
+    int lookup(String UID) {
+        int row = indexOf(UID);
+        if (row < 0) {
+            add(Commit.fromFile(UID));
+            row = indexOf(UID);
+        }
+        return row;
+    }
+
+    /**
+     * Append COMMIT to the graph, after appending any of its ancestors that
+     * are missing.  Does nothing if the commit is already in the graph.
+     * @param commit A commit that has been saved to the object store
+     */
+    void add(Commit commit) {
+        Deque<Commit> stack = new ArrayDeque<>();
+        stack.push(commit);
+        while (!stack.isEmpty()) {
+            Commit top = stack.peek();
+            if (indexOf(top.getUID()) >= 0) {
+                stack.pop();
+                continue;
+            }
+            // 1. Parents must get their rows first
+            boolean parentsPresent = true;
+            for (String parent : top.getParentID()) {
+                if (indexOf(parent) < 0) {
+                    stack.push(Commit.fromFile(parent));
+                    parentsPresent = false;
+                }
+            }
+            if (parentsPresent) {
+                stack.pop();
+                append(top);
+            }
+        }
+    }
+
+    String getUID(int row) {
+        byte[] id = new byte[UID_BYTES];
+        rows.get(row * ROW_SIZE, id);
+        return bytesToHex(id, 0, UID_BYTES);
+    }
+
+    /**
+     * Row of the first parent of ROW, -1 for the initial commit
+     */
+    int firstParent(int row) {
+        return rows.getInt(row * ROW_SIZE + PARENT1);
+    }
+
+    /**
+     * Row of the second (merged-in) parent of ROW, -1 unless it's a merge
+     */
+    int secondParent(int row) {
+        return rows.getInt(row * ROW_SIZE + PARENT2);
+    }
+
+    int generation(int row) {
+        return rows.getInt(row * ROW_SIZE + GENERATION);
+    }
+
+    /**
+     * Commit time of ROW in seconds since the epoch
+     */
+    long time(int row) {
+        return rows.getLong(row * ROW_SIZE + TIME);
+    }
+
+    String message(int row) {
+        int offset = (int) rows.getLong(row * ROW_SIZE + MESSAGE);
+        byte[] bytes = new byte[messages.getInt(offset)];
+        messages.get(offset + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Return whether the message of ROW is exactly MESSAGE, given as UTF-8
+     * bytes.  Messages of another length are rejected without being decoded.
+     */
+    boolean hasMessage(int row, byte[] message) {
+        int offset = (int) rows.getLong(row * ROW_SIZE + MESSAGE);
+        if (messages.getInt(offset) != message.length) {
+            return false;
+        }
+        return messages.slice(offset + 4, message.length).equals(ByteBuffer.wrap(message));
+    }
+
+    /**
+     * The text log prints for ROW, the same as the commit's toString
+     */
+    String describe(int row) {
+        List<String> parentID = new ArrayList<>();
+        if (firstParent(row) >= 0) {
+            parentID.add(getUID(firstParent(row)));
+        }
+        if (secondParent(row) >= 0) {
+            parentID.add(getUID(secondParent(row)));
+        }
+        return Commit.describe(getUID(row), parentID, Commit.formatTimestamp(time(row)), message(row));
+    }
+
+    /**
+     * Return whether the commit at ANCESTOR is reachable from the commit at
+     * DESCENDANT by following parents (a commit is its own ancestor).
+     */
+    boolean isAncestor(int ancestor, int descendant) {
+        int minGeneration = generation(ancestor);
+        BitSet visited = new BitSet(size);
+        Deque<Integer> fringe = new ArrayDeque<>();
+        fringe.push(descendant);
+        while (!fringe.isEmpty()) {
+            int row = fringe.pop();
+            if (row == ancestor) {
+                return true;
+            }
+            // Nothing below the ancestor's generation can lead back up to it
+            if (row < 0 || visited.get(row) || generation(row) <= minGeneration) {
+                continue;
+            }
+            visited.set(row);
+            fringe.push(firstParent(row));
+            fringe.push(secondParent(row));
+        }
+        return false;
+    }
+
+    /**
+     * Find the merge base of two commits, their latest common ancestor.
+     *
+     * Both commits are walked back together, highest generation first, and
+     * every commit reached is painted with the side(s) it was reached from.
+     * A commit is only taken off the queue once all of its descendants on the
+     * way from either side have been, so the first commit found painted by
+     * both sides is a common ancestor that no other common ancestor descends
+     * from, and the walk stops there.  Commits below its generation are never
+     * read.  Results are cached by commit ID, since they never change.
+     * @return The row of the merge base
+     */
+    int mergeBase(int current, int given) {
+        String key = getUID(current) + getUID(given);
+        String cached;
+        synchronized (MERGE_BASES) {
+            cached = MERGE_BASES.get(key);
+        }
+        if (cached != null && indexOf(cached) >= 0) {
+            return indexOf(cached);
+        }
+        // 1. Start from both commits, painted with their side
+        byte[] paint = new byte[size];
+        PriorityQueue<Integer> queue = new PriorityQueue<>((x, y) -> generation(x) != generation(y)
+                ? Integer.compare(generation(y), generation(x)) : Integer.compare(y, x));
+        paint[current] |= FROM_CURRENT;
+        paint[given] |= FROM_GIVEN;
+        queue.add(current);
+        if (given != current) {
+            queue.add(given);
+        }
+        // 2. Pass the paint down to the parents until a commit has both colors
+        int base = -1;
+        while (!queue.isEmpty()) {
+            int row = queue.poll();
+            if (paint[row] == (FROM_CURRENT | FROM_GIVEN)) {
+                base = row;
+                break;
+            }
+            for (int parent : new int[] {firstParent(row), secondParent(row)}) {
+                if (parent >= 0 && (paint[parent] | paint[row]) != paint[parent]) {
+                    if (paint[parent] == 0) {
+                        queue.add(parent);
+                    }
+                    paint[parent] |= paint[row];
+                }
+            }
+        }
+        if (base < 0) {
+            throw new IllegalStateException("No common ancestor");
+        }
+        synchronized (MERGE_BASES) {
+            MERGE_BASES.put(key, getUID(base));
+        }
+        return base;
+    }
+
+    /**
+     * Append the row of COMMIT, whose parents are in the graph already.
+     * The message is appended to commit-messages first and the row last,
+     * so a row that made it to the file refers to a whole message unless
+     * the appends were cut short, which map repairs.
+     */
+    private void append(Commit commit) {
+        List<String> parentID = commit.getParentID();
+        int parent1 = parentID.size() > 0 ? indexOf(parentID.get(0)) : -1;
+        int parent2 = parentID.size() > 1 ? indexOf(parentID.get(1)) : -1;
+        int generation = 1;
+        if (parent1 >= 0) {
+            generation = Math.max(generation, generation(parent1) + 1);
+        }
+        if (parent2 >= 0) {
+            generation = Math.max(generation, generation(parent2) + 1);
+        }
+        byte[] message = commit.getMessage().getBytes(StandardCharsets.UTF_8);
+        try {
+            ByteArrayOutputStream row = new ByteArrayOutputStream(ROW_SIZE);
+            DataOutputStream out = new DataOutputStream(row);
+            out.write(hexToBytes(commit.getUID()));
+            out.writeInt(parent1);
+            out.writeInt(parent2);
+            out.writeInt(generation);
+            out.writeLong(Commit.parseTimestamp(commit.getTimestamp()));
+            out.writeLong(MESSAGE_FILE.length());
+            // 1. The message goes first, so a row never points past the end of commit-messages
+            try (DataOutputStream msg = new DataOutputStream(new FileOutputStream(MESSAGE_FILE, true))) {
+                msg.writeInt(message.length);
+                msg.write(message);
+            }
+            try (FileOutputStream graph = new FileOutputStream(GRAPH_FILE, true)) {
+                graph.write(row.toByteArray());
+            }
+        } catch (IOException excp) {
+            throw error("Cannot update the commit graph: %s", excp.getMessage());
+        }
+        map();
+        if (ids != null) {
+            ids.catchUp();
+        }
+    }
+
+    /**
+     * Map the graph and message files, first cutting off a row left
+     * incomplete by an interrupted append
+     */
+    private void map() {
+        try (FileChannel graph = FileChannel.open(GRAPH_FILE.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+             FileChannel msg = FileChannel.open(MESSAGE_FILE.toPath())) {
+            long length = graph.size();
+            ByteBuffer header = graph.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            for (int i = 0; i < MAGIC.length; i += 1) {
+                if (header.get(i) != MAGIC[i]) {
+                    throw error("Corrupt commit graph");
+                }
+            }
+            messages = msg.map(FileChannel.MapMode.READ_ONLY, 0, msg.size());
+            size = (int) ((length - HEADER_SIZE) / ROW_SIZE);
+            rows = graph.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, (long) size * ROW_SIZE);
+            // 1. Drop a partial last row, and rows whose message didn't make it to commit-messages
+            int complete = size;
+            while (complete > 0 && !hasWholeMessage(complete - 1)) {
+                complete -= 1;
+            }
+            if (complete < size || length != HEADER_SIZE + (long) size * ROW_SIZE) {
+                // 2. Indexes of graph rows may have posted the dropped rows
+                CommitIndex.INDEX_FILE.delete();
+                MessageIndex.INDEX_FILE.delete();
+                PathFilter.INDEX_FILE.delete();
+                size = complete;
+                graph.truncate(HEADER_SIZE + (long) size * ROW_SIZE);
+                rows = graph.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, (long) size * ROW_SIZE);
+            }
+        } catch (IOException excp) {
+            throw error("Cannot read the commit graph: %s", excp.getMessage());
+        }
+    }
+
+    /**
+     * Return whether the message of ROW lies inside commit-messages
+     */
+    private boolean hasWholeMessage(int row) {
+        long offset = rows.getLong(row * ROW_SIZE + MESSAGE);
+        if (offset < 0 || offset + 4 > messages.capacity()) {
+            return false;
+        }
+        return offset + 4 + messages.getInt((int) offset) <= messages.capacity();
+    }
+}
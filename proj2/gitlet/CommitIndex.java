@@ -0,0 +1,278 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/**
+ * The IDs of all commits in sorted order, mapped to their commit graph
+ * rows, so that a commit (or every commit starting with an abbreviated
+ * ID) is found by binary search.
+ *
+ * commit-index: "GCIX", version (4), number of sorted entries (4), fanout
+ *               table (256 * 4), the sorted entries, then the entries
+ *               appended since the last merge, in graph order.  An entry
+ *               is the raw SHA1 ID (20) and the commit graph row (4).
+ *               fanout[b] is the number of sorted entries whose first
+ *               byte is at most b.
+ *
+ * New commits are appended unsorted and kept in memory in a TreeMap; once
+ * there are more than MAX_TAIL of them the whole file is rewritten sorted.
+ * Entries always cover the graph rows 0 .. (number of entries - 1).
+ *
+ *  @author AlexMan
+ */
+class CommitIndex {
+
+    static final File INDEX_FILE = join(Repository.GITLET_DIR, "commit-index");
+
+    private static final byte[] MAGIC = {'G', 'C', 'I', 'X'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12 + 256 * 4;
+    private static final int ENTRY_SIZE = UID_BYTES + 4;
+    private static final int MAX_TAIL = 1024;
+
+    private final CommitGraph graph;
+    // The sorted entries, mapped
+    private ByteBuffer sorted;
+    private int sortedCount;
+    private int[] fanout;
+    // ID -> row of the unsorted entries
+    private TreeMap<String, Integer> tail;
+
+    private CommitIndex(CommitGraph graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * Open the commit index of GRAPH, adding any commits that aren't in it
+     * yet (building the whole index if there's none).
+     */
+    static CommitIndex load(CommitGraph graph) {
+        CommitIndex result = new CommitIndex(graph);
+        if (!INDEX_FILE.exists()) {
+            rebuild(graph);
+        }
+        result.read();
+        if (result.size() > graph.size()) {
+            // The graph was rebuilt, so the rows no longer match
+            rebuild(graph);
+            result.read();
+        }
+        result.catchUp();
+        return result;
+    }
+
+    /**
+     * Number of commits in the index
+     */
+    int size() {
+        return sortedCount + tail.size();
+    }
+
+    /**
+     * Find the commit graph row of a commit
+     * @param UID Full SHA1 ID of the commit
+     * @return The row, -1 if there's no such commit
+     */
+    int rowOf(String UID) {
+        Integer row = tail.get(UID);
+        if (row != null) {
+            return row;
+        }
+        if (UID.length() != UID_LENGTH) {
+            return -1;
+        }
+        byte[] id = hexToBytes(UID);
+        int i = lowerBound(id, UID_LENGTH);
+        if (i < sortedCount && compare(i, id, UID_LENGTH) == 0) {
+            return sorted.getInt(i * ENTRY_SIZE + UID_BYTES);
+        }
+        return -1;
+    }
+
+    /**
+     * All commit IDs starting with PREFIX, in sorted order, but no more than
+     * LIMIT of them
+     * @param prefix Lower case hexadecimal digits
+     * @param limit 2 is enough to tell a unique prefix from an ambiguous one
+     */
+    List<String> withPrefix(String prefix, int limit) {
+        List<String> result = new ArrayList<>();
+        byte[] id = hexToBytes(prefix.length() % 2 == 0 ? prefix : prefix + "0");
+        for (int i = lowerBound(id, prefix.length());
+             i < sortedCount && compare(i, id, prefix.length()) == 0 && result.size() < limit; i += 1) {
+            result.add(idAt(i));
+        }
+        for (String UID : tail.tailMap(prefix).keySet()) {
+            if (!UID.startsWith(prefix) || result.size() >= limit) {
+                break;
+            }
+            result.add(UID);
+        }
+        result.sort(null);
+        return result.subList(0, Math.min(limit, result.size()));
+    }
+
+    /**
+     * Append the graph rows not indexed yet, merging them into the sorted
+     * entries once there are too many
+     */
+    void catchUp() {
+        int from = size();
+        if (from == graph.size()) {
+            return;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(INDEX_FILE, true)))) {
+            for (int row = from; row < graph.size(); row += 1) {
+                String UID = graph.getUID(row);
+                out.write(hexToBytes(UID));
+                out.writeInt(row);
+                tail.put(UID, row);
+            }
+        } catch (IOException excp) {
+            throw error("Cannot update the commit index: %s", excp.getMessage());
+        }
+        if (tail.size() > MAX_TAIL) {
+            rebuild(graph);
+            read();
+        }
+    }
+
+    /**
+     * Index of the first sorted entry that is not less than the first
+     * DIGITS hexadecimal digits of ID
+     */
+    private int lowerBound(byte[] id, int digits) {
+        int first = id[0] & 0xff;
+        int lo = first == 0 ? 0 : fanout[first - 1];
+        int hi = fanout[first];
+        if (digits < 2) {
+            // Only the high nibble of the first byte is given
+            lo = (first & 0xf0) == 0 ? 0 : fanout[(first & 0xf0) - 1];
+            hi = fanout[first | 0x0f];
+        }
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(mid, id, digits) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Compare the first DIGITS hexadecimal digits of the ID of sorted
+     * entry I with those of ID
+     */
+    private int compare(int i, byte[] id, int digits) {
+        int base = i * ENTRY_SIZE;
+        for (int d = 0; d < digits; d += 2) {
+            int a = sorted.get(base + d / 2) & 0xff;
+            int b = id[d / 2] & 0xff;
+            if (d + 1 == digits) {
+                a >>>= 4;
+                b >>>= 4;
+            }
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return 0;
+    }
+
+    private String idAt(int i) {
+        byte[] id = new byte[UID_BYTES];
+        sorted.get(i * ENTRY_SIZE, id);
+        return bytesToHex(id, 0, UID_BYTES);
+    }
+
+    private void read() {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(INDEX_FILE.toPath())) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException excp) {
+            throw error("Cannot read the commit index: %s", excp.getMessage());
+        }
+        for (byte b : MAGIC) {
+            if (buffer.get() != b) {
+                throw error("Corrupt commit index");
+            }
+        }
+        if (buffer.getInt() != VERSION) {
+            throw error("Unsupported commit index version");
+        }
+        sortedCount = buffer.getInt();
+        fanout = new int[256];
+        for (int i = 0; i < 256; i += 1) {
+            fanout[i] = buffer.getInt();
+        }
+        sorted = buffer.slice(HEADER_SIZE, sortedCount * ENTRY_SIZE);
+        // The tail is small, keep it in memory; a torn last entry means the index is rebuilt
+        tail = new TreeMap<>();
+        buffer.position(HEADER_SIZE + sortedCount * ENTRY_SIZE);
+        byte[] id = new byte[UID_BYTES];
+        while (buffer.remaining() >= ENTRY_SIZE) {
+            buffer.get(id);
+            tail.put(bytesToHex(id, 0, UID_BYTES), buffer.getInt());
+        }
+        if (buffer.hasRemaining()) {
+            rebuild(graph);
+            read();
+        }
+    }
+
+    /**
+     * Write a fully sorted index of every commit in GRAPH
+     */
+    private static void rebuild(CommitGraph graph) {
+        Map<String, Integer> rows = new TreeMap<>();
+        for (int row = 0; row < graph.size(); row += 1) {
+            rows.put(graph.getUID(row), row);
+        }
+        int[] fanout = new int[256];
+        for (String UID : rows.keySet()) {
+            fanout[Integer.parseInt(UID.substring(0, 2), 16)] += 1;
+        }
+        for (int i = 1; i < 256; i += 1) {
+            fanout[i] += fanout[i - 1];
+        }
+        File temp = join(Repository.GITLET_DIR, INDEX_FILE.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temp.toPath()), ObjectStore.BUFFER_SIZE))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(rows.size());
+            for (int count : fanout) {
+                out.writeInt(count);
+            }
+            for (Map.Entry<String, Integer> entry : rows.entrySet()) {
+                out.write(hexToBytes(entry.getKey()));
+                out.writeInt(entry.getValue());
+            }
+        } catch (IOException excp) {
+            temp.delete();
+            throw error("Cannot write the commit index: %s", excp.getMessage());
+        }
+        try {
+            Files.move(temp.toPath(), INDEX_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            throw error("Cannot write the commit index: %s", excp.getMessage());
+        }
+    }
+}
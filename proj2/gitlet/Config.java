@@ -0,0 +1,77 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import static gitlet.Utils.*;
+
+/**
+ * Repository settings, read from .gitlet/config as "key=value" lines.
+ * A JVM system property named "gitlet." followed by the key
+ * (i.e. -Dgitlet.core.compression=9) overrides the file.
+ *
+ *  @author AlexMan
+ */
+class Config {
+
+    static final File CONFIG_FILE = join(Repository.GITLET_DIR, "config");
+
+    // Settings from CONFIG_FILE, loaded on first use
+    private static Properties properties;
+
+    /**
+     * Get a setting
+     * @param key i.e. "core.compression"
+     * @param defaultValue Returned when the setting is absent
+     */
+    static String get(String key, String defaultValue) {
+        String value = System.getProperty("gitlet." + key);
+        if (value != null) {
+            return value.trim();
+        }
+        value = getProperties().getProperty(key);
+        return value == null ? defaultValue : value.trim();
+    }
+
+    static int getInt(String key, int defaultValue) {
+        return (int) getLong(key, defaultValue);
+    }
+
+    static long getLong(String key, long defaultValue) {
+        String value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException excp) {
+            throw error("Bad value for %s in config: %s", key, value);
+        }
+    }
+
+    /**
+     * Forget the settings read so far, so the next get reads the file again
+     */
+    static synchronized void reset() {
+        properties = null;
+    }
+
+    // Synchronized since worker threads read settings too
+    private static synchronized Properties getProperties() {
+        if (properties == null) {
+            Properties loaded = new Properties();
+            if (CONFIG_FILE.isFile()) {
+                try (InputStream in = new FileInputStream(CONFIG_FILE)) {
+                    loaded.load(in);
+                } catch (IOException excp) {
+                    throw error("Cannot read config: %s", excp.getMessage());
+                }
+            }
+            properties = loaded;
+        }
+        return properties;
+    }
+}
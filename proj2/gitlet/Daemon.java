@@ -0,0 +1,282 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import static gitlet.Utils.*;
+
+/**
+ * An opt-in server that runs gitlet commands in one long-lived JVM.
+ *
+ * "gitlet daemon" serves the repository in the current directory until
+ * "gitlet daemon stop".  It listens on a loopback port, written with a
+ * random token to .gitlet/daemon.  While that file exists, Main forwards
+ * every command to the daemon instead of running it, and prints what the
+ * daemon sends back, so the output is byte for byte what the command would
+ * have printed itself.  If the daemon can't be reached the command just
+ * runs in the client.
+ *
+ * Commands run one at a time, each seeing the files as the last one left
+ * them; the settings and pack list are dropped between requests, in case
+ * another process changed them.
+ *
+ * request:  token, working directory, number of arguments (4), arguments
+ * response: exit code (4), standard output, standard error
+ * Strings and byte arrays are sent as their length (4) and their bytes.
+ *
+ *  @author AlexMan
+ */
+class Daemon {
+
+    static final File PORT_FILE = join(Repository.GITLET_DIR, "daemon");
+
+    // Exit code answered for a request from another working directory, which the client runs itself
+    private static final int NOT_SERVED = -1;
+    private static final int CONNECT_TIMEOUT = 1000;
+    private static final int MAX_STRING = 1 << 24;
+
+    /**
+     * Serve requests until told to stop
+     */
+    static void serve() {
+        if (!Repository.GITLET_DIR.isDirectory()) {
+            throw error("Not in an initialized Gitlet directory.");
+        }
+        if (PORT_FILE.exists()) {
+            try (Socket running = connect()) {
+                if (running != null) {
+                    throw error("A gitlet daemon is already running.");
+                }
+            } catch (IOException excp) {
+                // Couldn't even be closed, so it's not running
+            }
+        }
+        String token = newToken();
+        try (ServerSocket server = new ServerSocket()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            writePortFile(server.getLocalPort(), token);
+            Runtime.getRuntime().addShutdownHook(new Thread(PORT_FILE::delete));
+            String cwd = Repository.CWD.getCanonicalPath();
+            boolean running = true;
+            while (running) {
+                try (Socket socket = server.accept()) {
+                    running = handle(socket, token, cwd);
+                } catch (IOException excp) {
+                    // A client that went away, keep serving the others
+                }
+            }
+        } catch (IOException excp) {
+            throw error("Cannot run the gitlet daemon: %s", excp.getMessage());
+        } finally {
+            PORT_FILE.delete();
+        }
+    }
+
+    /**
+     * Run ARGS in the daemon serving this directory, if there is one
+     * @return The exit code of the command, or -1 if it has to run locally
+     */
+    static int forward(String[] args) {
+        if (!PORT_FILE.exists()) {
+            return NOT_SERVED;
+        }
+        String[] portFile = readContentsAsString(PORT_FILE).trim().split(" ");
+        if (portFile.length != 2) {
+            return NOT_SERVED;
+        }
+        boolean sent = false;
+        try (Socket socket = connect()) {
+            if (socket == null) {
+                return NOT_SERVED;
+            }
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            writeString(out, portFile[1]);
+            writeString(out, Repository.CWD.getCanonicalPath());
+            out.writeInt(args.length);
+            for (String arg : args) {
+                writeString(out, arg);
+            }
+            out.flush();
+            sent = true;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            int code = in.readInt();
+            if (code == NOT_SERVED) {
+                return NOT_SERVED;
+            }
+            System.out.write(readBytes(in));
+            System.out.flush();
+            System.err.write(readBytes(in));
+            System.err.flush();
+            return code;
+        } catch (IOException excp) {
+            if (!sent) {
+                return NOT_SERVED;
+            }
+            // The command may have run already, so it mustn't be run again here
+            System.err.println("Lost the connection to the gitlet daemon: " + excp.getMessage());
+            return 1;
+        }
+    }
+
+    /**
+     * Answer one request
+     * @return Whether to keep serving
+     */
+    private static boolean handle(Socket socket, String token, String cwd) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        byte[] sent = readString(in).getBytes(StandardCharsets.UTF_8);
+        if (!MessageDigest.isEqual(sent, token.getBytes(StandardCharsets.UTF_8))) {
+            return true;
+        }
+        boolean sameDir = readString(in).equals(cwd);
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i += 1) {
+            args[i] = readString(in);
+        }
+        if (!sameDir || args.length == 0) {
+            out.writeInt(NOT_SERVED);
+            out.flush();
+            return true;
+        }
+        boolean stop = Arrays.equals(args, new String[] {"daemon", "stop"});
+        // 1. Run the command with its output captured
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        PrintStream oldOut = System.out;
+        PrintStream oldErr = System.err;
+        System.setOut(new PrintStream(stdout, true));
+        System.setErr(new PrintStream(stderr, true));
+        int code = 0;
+        try {
+            if (args[0].equals("daemon")) {
+                Main.validateNumArgs("daemon", args, 1, 2);
+                if (!stop) {
+                    throw error("A gitlet daemon is already running.");
+                }
+            } else {
+                Config.reset();
+                ObjectStore.reset();
+                Main.run(args);
+            }
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+        } catch (Throwable excp) {
+            // What the JVM prints for an uncaught exception, without the daemon's own frames
+            StackTraceElement[] trace = excp.getStackTrace();
+            for (int i = 0; i < trace.length; i += 1) {
+                if (trace[i].getClassName().equals(Main.class.getName())
+                        && trace[i].getMethodName().equals("run")) {
+                    excp.setStackTrace(Arrays.copyOf(trace, i + 1));
+                    break;
+                }
+            }
+            System.err.print("Exception in thread \"main\" ");
+            excp.printStackTrace();
+            code = 1;
+        } finally {
+            ObjectCache.printStats();
+            System.out.flush();
+            System.err.flush();
+            System.setOut(oldOut);
+            System.setErr(oldErr);
+        }
+        // 2. Send back the exit code and the output
+        out.writeInt(code);
+        writeBytes(out, stdout.toByteArray());
+        writeBytes(out, stderr.toByteArray());
+        out.flush();
+        return !stop;
+    }
+
+    /**
+     * Connect to the port in PORT_FILE, deleting the file if nothing is
+     * listening there any more
+     * @return The connected socket, null if there's no daemon
+     */
+    private static Socket connect() {
+        Socket socket = new Socket();
+        try {
+            int port = Integer.parseInt(readContentsAsString(PORT_FILE).trim().split(" ")[0]);
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT);
+            return socket;
+        } catch (IOException | IllegalArgumentException excp) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Never connected
+            }
+            PORT_FILE.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Write "PORT TOKEN" to PORT_FILE, readable by the owner only where
+     * the file system has permissions
+     */
+    private static void writePortFile(int port, String token) throws IOException {
+        File temp = join(Repository.GITLET_DIR, PORT_FILE.getName() + ".tmp");
+        temp.delete();
+        try {
+            Files.createFile(temp.toPath(), PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException excp) {
+            Files.createFile(temp.toPath());
+        }
+        writeContents(temp, port + " " + token + "\n");
+        Files.move(temp.toPath(), PORT_FILE.toPath());
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        return bytesToHex(bytes, 0, bytes.length);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Strings are only read from requests, which are never this large. */
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING) {
+            throw new IOException("bad length");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("bad length");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
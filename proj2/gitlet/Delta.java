@@ -0,0 +1,372 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToLongFunction;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import static gitlet.Utils.*;
+
+/**
+ * Copy/insert deltas between blob versions, used by gc to pack the
+ * versions of a file as differences from one another.
+ *
+ * A delta turns the body of a base blob into the body of a target blob:
+ * the base length, the target length, then instructions that either copy
+ * a range of the base (0, offset, length) or insert new bytes (1, length,
+ * bytes), all numbers being varints.  Matches are found by indexing the
+ * base in BLOCK byte blocks and rolling a hash of the same width over the
+ * target.
+ *
+ * When repacking, the blobs every path had over the history are collected
+ * from the commit trees.  The versions of a path are tried largest first,
+ * each against the pack.window versions before it, and stored as the
+ * smallest delta found if it takes less than half the space of the full
+ * object.  A delta's base may itself be a delta, up to pack.depth levels
+ * (0 turns deltas off).  The versions are ordered by the length in their
+ * headers, and only the bodies of the target and its window are in memory
+ * at a time.
+ *
+ *  @author AlexMan
+ */
+class Delta {
+
+    /** Setting for the longest chain of deltas. */
+    static final String DEPTH_KEY = "pack.depth";
+    /** Setting for how many other versions of a path are tried as bases. */
+    static final String WINDOW_KEY = "pack.window";
+
+    private static final int DEFAULT_DEPTH = 10;
+    private static final int DEFAULT_WINDOW = 4;
+    // Blobs outside this range are always packed whole
+    private static final int MIN_SIZE = 64;
+    private static final int MAX_SIZE = 16 << 20;
+    private static final int BLOCK = 16;
+    private static final int PRIME = 16777619;
+    // PRIME to the power BLOCK - 1, the weight of the byte leaving the rolling window
+    private static final int OUT_WEIGHT = power(PRIME, BLOCK - 1);
+    private static final byte COPY = 0;
+    private static final byte INSERT = 1;
+
+    /**
+     * A blob to be stored as a delta in a pack
+     */
+    static class Planned {
+        final String baseID;
+        // The delta, compressed
+        final byte[] data;
+
+        Planned(String baseID, byte[] data) {
+            this.baseID = baseID;
+            this.data = data;
+        }
+    }
+
+    /**
+     * A blob version being considered while planning
+     */
+    private static class Version {
+        final String UID;
+        final long length;
+        final long storedLength;
+        // Only loaded while the version is the target or in the window of bases
+        byte[] body;
+        int depth;
+
+        Version(String UID, long length, long storedLength) {
+            this.UID = UID;
+            this.length = length;
+            this.storedLength = storedLength;
+        }
+    }
+
+    /**
+     * Choose which of the blobs being packed are stored as deltas
+     * @param ids Every object going into the pack
+     * @param storedLength Stored length of an object packed whole
+     * @return target blob ID -> its base and delta
+     */
+    static Map<String, Planned> plan(Set<String> ids, ToLongFunction<String> storedLength) {
+        Map<String, Planned> result = new HashMap<>();
+        int maxDepth = Config.getInt(DEPTH_KEY, DEFAULT_DEPTH);
+        int window = Config.getInt(WINDOW_KEY, DEFAULT_WINDOW);
+        if (maxDepth <= 0 || window <= 0 || !CommitGraph.GRAPH_FILE.exists()) {
+            return result;
+        }
+        Set<String> decided = new HashSet<>();
+        for (List<String> versions : versionsByPath().values()) {
+            // 1. The plain blobs of this path not seen under another path, largest first by their headers
+            List<Version> candidates = new ArrayList<>();
+            for (String UID : versions) {
+                if (ids.contains(UID) && decided.add(UID) && ObjectStore.getStoredType(UID).equals(Blob.TYPE)) {
+                    long length = ObjectStore.getLength(UID);
+                    if (length >= MIN_SIZE && length <= MAX_SIZE) {
+                        candidates.add(new Version(UID, length, storedLength.applyAsLong(UID)));
+                    }
+                }
+            }
+            candidates.sort((x, y) -> Long.compare(y.length, x.length));
+            // 2. Try the previous versions in the window as bases, keeping the smallest delta
+            for (int i = 0; i < candidates.size(); i += 1) {
+                Version target = candidates.get(i);
+                target.body = ObjectStore.readBody(target.UID, Blob.TYPE);
+                Version bestBase = null;
+                byte[] best = null;
+                for (int j = Math.max(0, i - window); j < i; j += 1) {
+                    Version base = candidates.get(j);
+                    if (base.depth >= maxDepth) {
+                        continue;
+                    }
+                    byte[] data = compress(encode(base.body, target.body));
+                    if (best == null || data.length < best.length) {
+                        best = data;
+                        bestBase = base;
+                    }
+                }
+                if (best != null && best.length + UID_BYTES < target.storedLength / 2) {
+                    target.depth = bestBase.depth + 1;
+                    result.put(target.UID, new Planned(bestBase.UID, best));
+                }
+                // 3. The oldest base leaves the window of the next target
+                if (i >= window) {
+                    candidates.get(i - window).body = null;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The delta that turns BASE into TARGET
+     */
+    static byte[] encode(byte[] base, byte[] target) {
+        Codec.Encoder out = new Codec.Encoder();
+        out.writeVarint(base.length);
+        out.writeVarint(target.length);
+        // 1. Index the base by the hash of every aligned block
+        int slots = Integer.highestOneBit(Math.max(1, base.length / BLOCK) * 2);
+        int[] table = new int[slots];
+        for (int offset = base.length - BLOCK - (base.length % BLOCK); offset >= 0; offset -= BLOCK) {
+            // Going backwards, so the first block with a given hash wins
+            table[mix(hash(base, offset)) & (slots - 1)] = offset + 1;
+        }
+        // 2. Roll a hash over the target, copying from the base wherever a block matches
+        int pending = 0;
+        int j = 0;
+        int h = target.length >= BLOCK ? hash(target, 0) : 0;
+        while (j + BLOCK <= target.length) {
+            int candidate = base.length >= BLOCK ? table[mix(h) & (slots - 1)] - 1 : -1;
+            if (candidate >= 0 && matches(base, candidate, target, j, BLOCK)) {
+                int from = candidate;
+                int at = j;
+                int length = BLOCK;
+                while (from + length < base.length && at + length < target.length
+                        && base[from + length] == target[at + length]) {
+                    length += 1;
+                }
+                // Take back the inserted bytes that match the base as well
+                while (at > pending && from > 0 && base[from - 1] == target[at - 1]) {
+                    from -= 1;
+                    at -= 1;
+                    length += 1;
+                }
+                writeInsert(out, target, pending, at);
+                out.write(COPY);
+                out.writeVarint(from);
+                out.writeVarint(length);
+                j = at + length;
+                pending = j;
+                if (j + BLOCK <= target.length) {
+                    h = hash(target, j);
+                }
+                continue;
+            }
+            if (j + BLOCK < target.length) {
+                h = roll(h, target[j], target[j + BLOCK]);
+            }
+            j += 1;
+        }
+        writeInsert(out, target, pending, target.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Rebuild the target of DELTA from BASE
+     */
+    static byte[] apply(byte[] base, byte[] delta) {
+        Codec.Decoder in = new Codec.Decoder(delta);
+        if (in.readVarint() != base.length) {
+            throw error("Delta does not match its base");
+        }
+        long targetLength = in.readVarint();
+        if (targetLength > Integer.MAX_VALUE - 8) {
+            throw error("Corrupt delta");
+        }
+        byte[] target = new byte[(int) targetLength];
+        int at = 0;
+        while (in.hasRemaining()) {
+            byte op = in.readByte();
+            int offset = op == COPY ? (int) in.readVarint() : 0;
+            int length = (int) in.readVarint();
+            if (length < 0 || at + length > target.length) {
+                throw error("Corrupt delta");
+            }
+            if (op == COPY) {
+                if (offset < 0 || offset + length > base.length) {
+                    throw error("Corrupt delta");
+                }
+                System.arraycopy(base, offset, target, at, length);
+            } else if (op == INSERT) {
+                System.arraycopy(in.readBytes(length), 0, target, at, length);
+            } else {
+                throw error("Corrupt delta");
+            }
+            at += length;
+        }
+        if (at != target.length) {
+            throw error("Corrupt delta");
+        }
+        return target;
+    }
+
+    static byte[] compress(byte[] data) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(ObjectStore.compressionLevel());
+        try (DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater)) {
+            out.write(data);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            deflater.end();
+        }
+        return bytes.toByteArray();
+    }
+
+    static byte[] decompress(byte[] data) {
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+        byte[] buffer = new byte[ObjectStore.BUFFER_SIZE];
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw error("Truncated delta");
+                }
+                out.write(buffer, 0, n);
+            }
+        } catch (DataFormatException excp) {
+            throw error("Corrupt delta: %s", excp.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Length of the target of a compressed delta, inflating only the two
+     * lengths at its start
+     * @param data Bytes holding the compressed delta
+     * @param offset Where the compressed delta starts in DATA
+     */
+    static long targetLength(byte[] data, int offset) {
+        Inflater inflater = new Inflater();
+        inflater.setInput(data, offset, data.length - offset);
+        // Two varints of at most 10 bytes each
+        byte[] lengths = new byte[20];
+        int n = 0;
+        try {
+            while (n < lengths.length && !inflater.finished()) {
+                int got = inflater.inflate(lengths, n, lengths.length - n);
+                if (got == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw error("Truncated delta");
+                }
+                n += got;
+            }
+        } catch (DataFormatException excp) {
+            throw error("Corrupt delta: %s", excp.getMessage());
+        } finally {
+            inflater.end();
+        }
+        Codec.Decoder in = new Codec.Decoder(Arrays.copyOf(lengths, n));
+        in.readVarint();
+        return in.readVarint();
+    }
+
+    /**
+     * The distinct blobs every path had, in the order the commits were made
+     */
+    private static Map<String, List<String>> versionsByPath() {
+        Map<String, Set<String>> versions = new LinkedHashMap<>();
+        CommitGraph graph = CommitGraph.load();
+        for (int row = 0; row < graph.size(); row += 1) {
+            int parent = graph.firstParent(row);
+            String parentTree = parent < 0 ? Tree.EMPTY_ID : Commit.fromFile(graph.getUID(parent)).getTreeID();
+            String tree = Commit.fromFile(graph.getUID(row)).getTreeID();
+            for (Map.Entry<String, String> change : Tree.diff(parentTree, tree).entrySet()) {
+                if (change.getValue() != null) {
+                    versions.computeIfAbsent(change.getKey(), k -> new LinkedHashSet<>()).add(change.getValue());
+                }
+            }
+        }
+        Map<String, List<String>> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Set<String>> entry : versions.entrySet()) {
+            result.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+        return result;
+    }
+
+    private static void writeInsert(Codec.Encoder out, byte[] target, int from, int to) {
+        if (from < to) {
+            out.write(INSERT);
+            out.writeVarint(to - from);
+            out.write(target, from, to - from);
+        }
+    }
+
+    private static boolean matches(byte[] a, int aFrom, byte[] b, int bFrom, int length) {
+        for (int k = 0; k < length; k += 1) {
+            if (a[aFrom + k] != b[bFrom + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] data, int offset) {
+        int h = 0;
+        for (int k = 0; k < BLOCK; k += 1) {
+            h = h * PRIME + (data[offset + k] & 0xff);
+        }
+        return h;
+    }
+
+    private static int roll(int h, byte out, byte in) {
+        return (h - (out & 0xff) * OUT_WEIGHT) * PRIME + (in & 0xff);
+    }
+
+    // The table is indexed by the low bits, so spread the polynomial's high bits into them
+    private static int mix(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static int power(int x, int n) {
+        int result = 1;
+        for (int i = 0; i < n; i += 1) {
+            result *= x;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,552 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Line diffs of file contents, for the diff command and for merging.
+ *
+ * Both sides are split into lines and every distinct line is given a
+ * number, so the algorithms compare ints.  A region is first trimmed of
+ * its common prefix and suffix, then split around an anchor the way
+ * histogram diff does it: the line of the region that occurs the fewest
+ * times in the old side (at most MAX_CHAIN times) and also occurs in the
+ * new side, extended to the longest run of equal lines around it.  Regions
+ * that have no such line because every common line is too frequent are
+ * split at the middle of their shortest edit script with Myers' O(ND)
+ * algorithm, which runs in linear space by searching from both ends at
+ * once.  Regions that have no line in common at all, or that would cost
+ * Myers more than MAX_COST steps, are reported as one replaced block.
+ *
+ * Regions are kept on an explicit stack, so long files can't overflow the
+ * call stack.
+ *
+ *  @author AlexMan
+ */
+class Diff {
+
+    /** Lines of context around each hunk of a unified diff. */
+    static final int CONTEXT = 3;
+
+    // Lines occurring more often than this in a region are not used as anchors
+    private static final int MAX_CHAIN = 64;
+    // Largest D the Myers search goes to before giving up on a region
+    private static final int MAX_COST = 4096;
+    // How much of a file is looked at for NUL bytes to call it binary
+    private static final int BINARY_PREFIX = 8000;
+
+    /**
+     * One block of lines that differs: lines [beginA, endA) of the old side
+     * were replaced by lines [beginB, endB) of the new side.  An empty old
+     * range is an insertion, an empty new range a deletion.
+     */
+    static class Edit {
+        final int beginA;
+        final int endA;
+        final int beginB;
+        final int endB;
+
+        Edit(int beginA, int endA, int beginB, int endB) {
+            this.beginA = beginA;
+            this.endA = endA;
+            this.beginB = beginB;
+            this.endB = endB;
+        }
+    }
+
+    /**
+     * File content split into lines.  Every line keeps its terminating
+     * '\n', only the last line may lack one.
+     */
+    static class Lines {
+        final byte[] data;
+        // Start of every line, followed by the length of DATA
+        private final int[] starts;
+
+        Lines(byte[] data) {
+            this.data = data;
+            int count = 0;
+            for (byte b : data) {
+                if (b == '\n') {
+                    count += 1;
+                }
+            }
+            boolean partial = data.length > 0 && data[data.length - 1] != '\n';
+            starts = new int[count + (partial ? 1 : 0) + 1];
+            int line = 1;
+            for (int i = 0; i < data.length; i += 1) {
+                if (data[i] == '\n' && i + 1 < data.length) {
+                    starts[line] = i + 1;
+                    line += 1;
+                }
+            }
+            starts[starts.length - 1] = data.length;
+        }
+
+        int size() {
+            return starts.length - 1;
+        }
+
+        ByteBuffer line(int i) {
+            return ByteBuffer.wrap(data, starts[i], starts[i + 1] - starts[i]).slice();
+        }
+
+        boolean endsWithNewline(int i) {
+            return starts[i + 1] > starts[i] && data[starts[i + 1] - 1] == '\n';
+        }
+
+        /**
+         * Append lines [from, to) to OUT, making sure the last one ends with
+         * a newline if NEWLINE is set
+         */
+        void write(ByteArrayOutputStream out, int from, int to, boolean newline) {
+            if (from >= to) {
+                return;
+            }
+            out.write(data, starts[from], starts[to] - starts[from]);
+            if (newline && !endsWithNewline(to - 1)) {
+                out.write('\n');
+            }
+        }
+    }
+
+    /**
+     * The result of a three-way merge
+     */
+    static class MergeResult {
+        final byte[] content;
+        final boolean conflict;
+
+        MergeResult(byte[] content, boolean conflict) {
+            this.content = content;
+            this.conflict = conflict;
+        }
+    }
+
+    private final int[] a;
+    private final int[] b;
+    private final List<Edit> edits = new ArrayList<>();
+    // Histogram scratch space: per line number the first position in the old region and
+    // the number of occurrences there, per old position the next one with the same line
+    private final int[] head;
+    private final int[] count;
+    private final int[] next;
+
+    private Diff(int[] a, int[] b, int distinct) {
+        this.a = a;
+        this.b = b;
+        this.head = new int[distinct];
+        this.count = new int[distinct];
+        this.next = new int[a.length];
+        Arrays.fill(head, -1);
+    }
+
+    /**
+     * The edits that turn OLD into NEW, in order
+     */
+    static List<Edit> diff(Lines old, Lines now) {
+        Map<ByteBuffer, Integer> numbers = new HashMap<>();
+        int[] x = number(old, numbers);
+        int[] y = number(now, numbers);
+        return new Diff(x, y, numbers.size()).run();
+    }
+
+    /**
+     * Return whether CONTENT looks like a binary file rather than text
+     */
+    static boolean isBinary(byte[] content) {
+        for (int i = 0; i < Math.min(content.length, BINARY_PREFIX); i += 1) {
+            if (content[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write the hunks of a unified diff from OLD to NEW, with CONTEXT lines
+     * of context, to OUT
+     * @param edits diff(old, now)
+     */
+    static void writeHunks(ByteArrayOutputStream out, Lines old, Lines now, List<Edit> edits) {
+        int i = 0;
+        while (i < edits.size()) {
+            // 1. A hunk takes every following edit that is close enough to share context
+            int last = i;
+            while (last + 1 < edits.size()
+                    && edits.get(last + 1).beginA - edits.get(last).endA <= 2 * CONTEXT) {
+                last += 1;
+            }
+            Edit first = edits.get(i);
+            int startA = Math.max(0, first.beginA - CONTEXT);
+            int startB = first.beginB - (first.beginA - startA);
+            int endA = Math.min(old.size(), edits.get(last).endA + CONTEXT);
+            int endB = edits.get(last).endB + (endA - edits.get(last).endA);
+            writeAscii(out, "@@ -" + range(startA, endA - startA) + " +"
+                    + range(startB, endB - startB) + " @@\n");
+            // 2. Context, removed and added lines
+            int posA = startA;
+            for (int e = i; e <= last; e += 1) {
+                Edit edit = edits.get(e);
+                writeLines(out, ' ', old, posA, edit.beginA);
+                writeLines(out, '-', old, edit.beginA, edit.endA);
+                writeLines(out, '+', now, edit.beginB, edit.endB);
+                posA = edit.endA;
+            }
+            writeLines(out, ' ', old, posA, endA);
+            i = last + 1;
+        }
+    }
+
+    /**
+     * Merge the changes from BASE to OURS and from BASE to THEIRS.  Changes
+     * to different lines are both kept; where both sides changed the same
+     * lines differently the two versions are put between conflict markers.
+     */
+    static MergeResult merge(Lines base, Lines ours, Lines theirs) {
+        List<Edit> mine = diff(base, ours);
+        List<Edit> other = diff(base, theirs);
+        MergeOutput out = new MergeOutput(Math.max(ours.data.length, theirs.data.length));
+        boolean conflict = false;
+        int i = 0;
+        int j = 0;
+        // Lines added minus lines removed by the edits of each side before the current chunk
+        int shiftMine = 0;
+        int shiftOther = 0;
+        int pos = 0;
+        while (i < mine.size() || j < other.size()) {
+            // 1. A chunk starts with the next edit of either side and takes every edit
+            // of both sides that overlaps it (or inserts at the same place)
+            boolean takeMine = j >= other.size()
+                    || (i < mine.size() && mine.get(i).beginA <= other.get(j).beginA);
+            int start = takeMine ? mine.get(i).beginA : other.get(j).beginA;
+            int end = start;
+            int fromMine = i;
+            int fromOther = j;
+            boolean grew = true;
+            while (grew) {
+                grew = false;
+                if (i < mine.size() && touches(mine.get(i), start, end)) {
+                    end = Math.max(end, mine.get(i).endA);
+                    i += 1;
+                    grew = true;
+                }
+                if (j < other.size() && touches(other.get(j), start, end)) {
+                    end = Math.max(end, other.get(j).endA);
+                    j += 1;
+                    grew = true;
+                }
+            }
+            // 2. What each side made of base lines [start, end)
+            int mineStart = start + shiftMine;
+            int otherStart = start + shiftOther;
+            for (int e = fromMine; e < i; e += 1) {
+                shiftMine += (mine.get(e).endB - mine.get(e).beginB) - (mine.get(e).endA - mine.get(e).beginA);
+            }
+            for (int e = fromOther; e < j; e += 1) {
+                shiftOther += (other.get(e).endB - other.get(e).beginB)
+                        - (other.get(e).endA - other.get(e).beginA);
+            }
+            int mineEnd = end + shiftMine;
+            int otherEnd = end + shiftOther;
+            base.write(out, pos, start, false);
+            if (fromOther == j || sameLines(ours, mineStart, mineEnd, theirs, otherStart, otherEnd)) {
+                ours.write(out, mineStart, mineEnd, false);
+            } else if (fromMine == i) {
+                theirs.write(out, otherStart, otherEnd, false);
+            } else {
+                conflict = true;
+                if (out.size() > 0 && !out.endsWithNewline()) {
+                    out.write('\n');
+                }
+                writeAscii(out, "<<<<<<< HEAD\n");
+                ours.write(out, mineStart, mineEnd, true);
+                writeAscii(out, "=======\n");
+                theirs.write(out, otherStart, otherEnd, true);
+                writeAscii(out, ">>>>>>>\n");
+            }
+            pos = end;
+        }
+        base.write(out, pos, base.size(), false);
+        return new MergeResult(out.toByteArray(), conflict);
+    }
+
+    /**
+     * Whether EDIT belongs to the chunk of base lines [start, end): it
+     * overlaps it, or inserts right where the chunk starts or ends
+     */
+    private static boolean touches(Edit edit, int start, int end) {
+        if (edit.beginA < end) {
+            return true;
+        }
+        return edit.beginA == end && (edit.beginA == edit.endA || start == end);
+    }
+
+    private static boolean sameLines(Lines x, int xFrom, int xTo, Lines y, int yFrom, int yTo) {
+        if (xTo - xFrom != yTo - yFrom) {
+            return false;
+        }
+        for (int k = 0; k < xTo - xFrom; k += 1) {
+            if (!x.line(xFrom + k).equals(y.line(yFrom + k))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<Edit> run() {
+        Deque<int[]> regions = new ArrayDeque<>();
+        regions.push(new int[] {0, a.length, 0, b.length});
+        while (!regions.isEmpty()) {
+            int[] region = regions.pop();
+            split(region[0], region[1], region[2], region[3], regions);
+        }
+        // Regions come off the stack in order, but neighbouring edits may need joining
+        edits.sort((x, y) -> x.beginA != y.beginA ? x.beginA - y.beginA : x.beginB - y.beginB);
+        List<Edit> result = new ArrayList<>(edits.size());
+        for (Edit edit : edits) {
+            Edit prev = result.isEmpty() ? null : result.get(result.size() - 1);
+            if (prev != null && prev.endA == edit.beginA && prev.endB == edit.beginB) {
+                result.set(result.size() - 1, new Edit(prev.beginA, edit.endA, prev.beginB, edit.endB));
+            } else {
+                result.add(edit);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Diff the region [aS, aE) x [bS, bE): record its edits if it's simple
+     * enough, otherwise push the smaller regions it splits into
+     */
+    private void split(int aS, int aE, int bS, int bE, Deque<int[]> regions) {
+        // 1. Equal lines at both ends are never part of an edit
+        while (aS < aE && bS < bE && a[aS] == b[bS]) {
+            aS += 1;
+            bS += 1;
+        }
+        while (aS < aE && bS < bE && a[aE - 1] == b[bE - 1]) {
+            aE -= 1;
+            bE -= 1;
+        }
+        if (aS == aE && bS == bE) {
+            return;
+        }
+        if (aS == aE || bS == bE) {
+            edits.add(new Edit(aS, aE, bS, bE));
+            return;
+        }
+        // 2. Split around the rarest common run of lines
+        int[] anchor = histogramAnchor(aS, aE, bS, bE);
+        if (anchor != null && anchor.length == 4) {
+            // Pushed right first, so the left region is diffed first
+            regions.push(new int[] {anchor[1], aE, anchor[3], bE});
+            regions.push(new int[] {aS, anchor[0], bS, anchor[2]});
+            return;
+        }
+        // 3. Every common line is frequent: split in the middle of the edit script
+        int[] middle = anchor == null ? null : bisect(aS, aE, bS, bE);
+        if (middle == null) {
+            edits.add(new Edit(aS, aE, bS, bE));
+            return;
+        }
+        regions.push(new int[] {middle[0], aE, middle[1], bE});
+        regions.push(new int[] {aS, middle[0], bS, middle[1]});
+    }
+
+    /**
+     * Find the run of equal lines to split a region around
+     * @return {aStart, aEnd, bStart, bEnd} of the run; an empty array if
+     *         every common line is too frequent; null if the two sides have
+     *         no line in common
+     */
+    private int[] histogramAnchor(int aS, int aE, int bS, int bE) {
+        // 1. Chain the positions of every line of the old region, counting them
+        for (int i = aE - 1; i >= aS; i -= 1) {
+            int line = a[i];
+            next[i] = head[line];
+            head[line] = i;
+            count[line] += 1;
+        }
+        // 2. Try the lines of the new region that occur least often in the old one
+        boolean common = false;
+        int bestCount = MAX_CHAIN + 1;
+        int bestLength = 0;
+        int[] best = null;
+        int bi = bS;
+        while (bi < bE) {
+            int line = b[bi];
+            int occurrences = count[line];
+            int nextB = bi + 1;
+            if (occurrences > 0) {
+                common = true;
+            }
+            if (occurrences > 0 && occurrences <= MAX_CHAIN && occurrences <= bestCount) {
+                for (int ai = head[line]; ai >= 0; ai = next[ai]) {
+                    int as = ai;
+                    int bs = bi;
+                    while (as > aS && bs > bS && a[as - 1] == b[bs - 1]) {
+                        as -= 1;
+                        bs -= 1;
+                    }
+                    int ae = ai + 1;
+                    int be = bi + 1;
+                    while (ae < aE && be < bE && a[ae] == b[be]) {
+                        ae += 1;
+                        be += 1;
+                    }
+                    if (occurrences < bestCount || ae - as > bestLength) {
+                        bestCount = occurrences;
+                        bestLength = ae - as;
+                        best = new int[] {as, ae, bs, be};
+                    }
+                    // The rest of this run starts no better run
+                    nextB = Math.max(nextB, be);
+                }
+            }
+            bi = nextB;
+        }
+        // 3. Leave the scratch space clean for the next region
+        for (int i = aS; i < aE; i += 1) {
+            head[a[i]] = -1;
+            count[a[i]] = 0;
+        }
+        if (best != null) {
+            return best;
+        }
+        return common ? new int[0] : null;
+    }
+
+    /**
+     * Find a point on a shortest edit script of the region, searching from
+     * both ends until the two searches meet (Myers' linear space variant)
+     * @return {x, y}, the point where the forward search met the backward
+     *         one, or null if that takes more than MAX_COST edits
+     */
+    private int[] bisect(int aS, int aE, int bS, int bE) {
+        int n = aE - aS;
+        int m = bE - bS;
+        int maxD = Math.min((n + m + 1) / 2, MAX_COST);
+        int offset = maxD + 1;
+        int length = 2 * offset + 1;
+        int[] forward = new int[length];
+        int[] backward = new int[length];
+        Arrays.fill(forward, -1);
+        Arrays.fill(backward, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int delta = n - m;
+        // With an odd delta the forward search is the one to notice the overlap
+        boolean front = (delta & 1) != 0;
+        int kStart1 = 0;
+        int kEnd1 = 0;
+        int kStart2 = 0;
+        int kEnd2 = 0;
+        for (int d = 0; d < maxD; d += 1) {
+            for (int k = -d + kStart1; k <= d - kEnd1; k += 2) {
+                int i = offset + k;
+                int x = (k == -d || (k != d && forward[i - 1] < forward[i + 1])) ? forward[i + 1] : forward[i - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aS + x] == b[bS + y]) {
+                    x += 1;
+                    y += 1;
+                }
+                forward[i] = x;
+                if (x > n) {
+                    kEnd1 += 2;
+                } else if (y > m) {
+                    kStart1 += 2;
+                } else if (front) {
+                    int j = offset + delta - k;
+                    if (j >= 0 && j < length && backward[j] != -1 && x >= n - backward[j]) {
+                        return new int[] {aS + x, bS + y};
+                    }
+                }
+            }
+            for (int k = -d + kStart2; k <= d - kEnd2; k += 2) {
+                int i = offset + k;
+                int x = (k == -d || (k != d && backward[i - 1] < backward[i + 1])) ? backward[i + 1] : backward[i - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aE - 1 - x] == b[bE - 1 - y]) {
+                    x += 1;
+                    y += 1;
+                }
+                backward[i] = x;
+                if (x > n) {
+                    kEnd2 += 2;
+                } else if (y > m) {
+                    kStart2 += 2;
+                } else if (!front) {
+                    int j = offset + delta - k;
+                    if (j >= 0 && j < length && forward[j] != -1) {
+                        int fx = forward[j];
+                        int fy = fx - (j - offset);
+                        if (fx >= n - x) {
+                            return new int[] {aS + fx, bS + fy};
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Number every line of LINES, giving equal lines the same number
+     */
+    private static int[] number(Lines lines, Map<ByteBuffer, Integer> numbers) {
+        int[] result = new int[lines.size()];
+        for (int i = 0; i < result.length; i += 1) {
+            Integer n = numbers.putIfAbsent(lines.line(i), numbers.size());
+            result[i] = n == null ? numbers.size() - 1 : n;
+        }
+        return result;
+    }
+
+    /**
+     * A hunk range, "start,count" with start counted from 1 ("start" alone
+     * for a single line, and the line before for an empty range)
+     */
+    private static String range(int start, int count) {
+        if (count == 1) {
+            return Integer.toString(start + 1);
+        }
+        return (count == 0 ? start : start + 1) + "," + count;
+    }
+
+    private static void writeLines(ByteArrayOutputStream out, char prefix, Lines lines, int from, int to) {
+        for (int i = from; i < to; i += 1) {
+            out.write(prefix);
+            lines.write(out, i, i + 1, true);
+            if (!lines.endsWithNewline(i)) {
+                writeAscii(out, "\\ No newline at end of file\n");
+            }
+        }
+    }
+
+    /**
+     * The merged file being written, which can tell its last byte without
+     * copying everything written so far
+     */
+    private static class MergeOutput extends ByteArrayOutputStream {
+        MergeOutput(int size) {
+            super(size);
+        }
+
+        boolean endsWithNewline() {
+            return count > 0 && buf[count - 1] == '\n';
+        }
+    }
+
+    private static void writeAscii(ByteArrayOutputStream out, String text) {
+        out.writeBytes(text.getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -1,12 +1,18 @@
 package gitlet;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /** A debugging class whose main program may be invoked as follows:
  *      java gitlet.DumpObj FILE...
- *  where each FILE is a file produced by Utils.writeObject (or any file
- *  containing a serialized object).  This will simply read FILE,
- *  deserialize it, and call the dump method on the resulting Object.
+ *  where each FILE is either a stored object (a loose file under
+ *  .gitlet/objects/XX, XX being the first two digits of its ID) or the
+ *  index.  This will simply read FILE,
+ *  decode it, and call the dump method on the resulting Object.
  *  The object must implement the gitlet.Dumpable interface for this
  *  to work.  For example, you might define your class like this:
  *
@@ -29,15 +35,51 @@ import java.io.File;
  */
 public class DumpObj {
 
-    /** Deserialize and apply dump to the contents of each of the files
+    /** Decode and apply dump to the contents of each of the files
      *  in FILES. */
     public static void main(String... files) {
         for (String fileName : files) {
-            Dumpable obj = Utils.readObject(new File(fileName),
-                                            Dumpable.class);
+            File file = new File(fileName);
+            byte[] contents = Utils.readContents(file);
+            Dumpable obj;
+            if (file.getName().equals("index")) {
+                obj = Codec.decodeStage(contents);
+            } else {
+                // The ID of a loose object is split between its directory and its name
+                String dir = file.getAbsoluteFile().getParentFile().getName();
+                obj = decodeObject(dir.length() == 2 ? dir + file.getName() : file.getName(), contents);
+            }
             obj.dump();
             System.out.println("---");
         }
     }
+
+    /** Decode the stored object UID, whose stored bytes are CONTENTS. */
+    private static Dumpable decodeObject(String UID, byte[] contents) {
+        try (ObjectStream in = new ObjectStream(new BufferedInputStream(
+                new ByteArrayInputStream(contents)))) {
+            if (in.getType().equals(Blob.TYPE)) {
+                return new Blob(UID, in.readBody());
+            } else if (in.getType().equals(Tree.TYPE)) {
+                return Codec.decodeTree(UID, in.readBody());
+            } else if (in.getType().equals(Chunker.TYPE)) {
+                long size = in.getLength();
+                return () -> System.out.printf("chunk %s%nsize: %d%n", UID, size);
+            } else if (in.getType().equals(Chunker.LIST_TYPE)) {
+                List<String> ids = new ArrayList<>();
+                List<Integer> lengths = new ArrayList<>();
+                Codec.decodeChunkList(UID, in.readBody(), ids, lengths);
+                return () -> {
+                    System.out.printf("chunked blob %s%n", UID);
+                    for (int i = 0; i < ids.size(); i += 1) {
+                        System.out.printf("chunk %s %d%n", ids.get(i), lengths.get(i));
+                    }
+                };
+            }
+            return Codec.decodeCommit(UID, in.readBody());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
 }
 
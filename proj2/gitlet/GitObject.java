@@ -1,28 +1,20 @@
 package gitlet;
 
-import java.io.File;
-import java.io.Serializable;
-
-public abstract class GitObject implements Serializable {
-    private static final File SAVE_DIR = Repository.OBJECT_DIR;
-    private String UID;  // Unique Identifier
-    private String TYPE;
-
-
-    /**
-     * Serialize current object to the specified savePath
-     */
-    public void saveGitObject() {
-        Utils.writeObject(Utils.join(SAVE_DIR, this.UID), this);
-    }
+public abstract class GitObject implements Dumpable {
 
     /**
-     * Deserialize the object given its SHA1ID
+     * Read the object given its SHA1ID, whatever its type
      * @param UID SHA1 ID of the object
      * @return An object with SHA1 ID
      */
     public static GitObject readGitObject(String UID) {
-        return Utils.readObject(Utils.join(SAVE_DIR, UID), GitObject.class);
+        String type = ObjectStore.getType(UID);
+        if (type.equals(Blob.TYPE)) {
+            return Blob.fromFile(UID);
+        } else if (type.equals(Tree.TYPE)) {
+            return Tree.fromFile(UID);
+        }
+        return Commit.fromFile(UID);
     }
 
 
@@ -0,0 +1,187 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import static gitlet.Utils.*;
+
+/**
+ * Crash-safe replacement of the small files that describe the state of the
+ * repository: HEAD, the branch heads and the index.  The new content is
+ * written to FILE.lock (created only if it doesn't exist yet), flushed to
+ * the disk, then renamed over FILE in one atomic step, so a reader sees
+ * either the old or the new content and never a torn file.
+ *
+ * Every command also holds the repository lock, an OS lock on .gitlet/lock,
+ * so that gitlet processes working on the same repository wait for one
+ * another instead of interleaving their updates.  The OS drops that lock
+ * when a process dies; a FILE.lock found while holding it was left behind
+ * by a crash and is replaced.
+ *
+ *  @author AlexMan
+ */
+class LockFile {
+
+    static final String SUFFIX = ".lock";
+    static final File REPOSITORY_LOCK = join(Repository.GITLET_DIR, "lock");
+
+    // The repository lock held by this process, null if none
+    private static FileChannel lockChannel;
+    private static FileLock repositoryLock;
+
+    private final File target;
+    private final File lock;
+    private final FileChannel channel;
+
+    /**
+     * Take the lock of TARGET by creating TARGET.lock
+     */
+    LockFile(File target) {
+        this.target = target;
+        this.lock = new File(target.getPath() + SUFFIX);
+        if (lock.exists() && isRepositoryLocked()) {
+            // Nobody else can be writing it, so a crashed process left it behind
+            lock.delete();
+        }
+        try {
+            this.channel = FileChannel.open(lock.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (IOException excp) {
+            throw error("Unable to create '%s': %s", lock.getPath(),
+                    lock.exists() ? "another gitlet process seems to be running" : excp.getMessage());
+        }
+    }
+
+    /**
+     * Replace TARGET with CONTENTS (byte arrays and strings, concatenated)
+     * through TARGET.lock
+     */
+    static void write(File target, Object... contents) {
+        LockFile file = new LockFile(target);
+        try {
+            for (Object content : contents) {
+                file.write(content instanceof byte[] ? (byte[]) content
+                        : ((String) content).getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (RuntimeException excp) {
+            file.rollback();
+            throw excp;
+        }
+        file.commit();
+    }
+
+    /**
+     * Append BYTES to the new content
+     */
+    void write(byte[] bytes) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException excp) {
+            rollback();
+            throw error("Cannot write %s: %s", lock.getPath(), excp.getMessage());
+        }
+    }
+
+    /**
+     * Flush the new content to the disk and move it over the target
+     */
+    void commit() {
+        try {
+            channel.force(true);
+            channel.close();
+            try {
+                Files.move(lock.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException excp) {
+                Files.move(lock.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            syncDirectory(target.getParentFile());
+        } catch (IOException excp) {
+            rollback();
+            throw error("Cannot update %s: %s", target.getPath(), excp.getMessage());
+        }
+    }
+
+    /**
+     * Give up the update, leaving the target as it was
+     */
+    void rollback() {
+        try {
+            channel.close();
+        } catch (IOException excp) {
+            // Being deleted anyway
+        }
+        lock.delete();
+    }
+
+    /**
+     * Take the repository lock, waiting for any other gitlet process that
+     * holds it.  Released by unlockRepository, or when the process exits.
+     */
+    static void lockRepository() {
+        if (repositoryLock != null) {
+            return;
+        }
+        try {
+            lockChannel = FileChannel.open(REPOSITORY_LOCK.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            repositoryLock = lockChannel.tryLock();
+            if (repositoryLock == null) {
+                System.err.println("Waiting for another gitlet process to finish...");
+                repositoryLock = lockChannel.lock();
+            }
+        } catch (IOException excp) {
+            unlockRepository();
+            throw error("Cannot lock the repository: %s", excp.getMessage());
+        }
+    }
+
+    static void unlockRepository() {
+        try {
+            if (repositoryLock != null) {
+                repositoryLock.release();
+            }
+            if (lockChannel != null) {
+                lockChannel.close();
+            }
+        } catch (IOException excp) {
+            // Closing the channel releases the lock regardless
+        }
+        repositoryLock = null;
+        lockChannel = null;
+    }
+
+    static boolean isRepositoryLocked() {
+        return repositoryLock != null;
+    }
+
+    /**
+     * Flush the content of FILE to the disk
+     */
+    static void sync(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Flush the directory entry of a renamed file, where the platform allows it
+     */
+    private static void syncDirectory(File dir) {
+        try (FileChannel directory = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException excp) {
+            // Directories can't be opened for syncing on every platform
+        }
+    }
+}
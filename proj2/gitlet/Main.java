@@ -1,5 +1,7 @@
 package gitlet;
 
+import java.util.Arrays;
+
 /** Driver class for Gitlet, a subset of the Git version-control system.
  *  @author TODO
  */
@@ -9,10 +11,53 @@ public class Main {
      *  <COMMAND> <OPERAND1> <OPERAND2> ... 
      */
     public static void main(String[] args) {
+        // Hand the command to a running daemon, unless this is the daemon being started
+        if (args.length > 0 && !(args.length == 1 && args[0].equals("daemon"))) {
+            int code = Daemon.forward(args);
+            if (code >= 0) {
+                System.exit(code);
+            }
+        }
+        try {
+            run(args);
+        } catch (GitletException excp) {
+            // Exits normally (code 0) after printing the message
+            System.out.println(excp.getMessage());
+        } finally {
+            ObjectCache.printStats();
+        }
+    }
+
+    /**
+     * Run the command in ARGS.  Failures the user should see are thrown as
+     * a GitletException carrying the message to print.
+     */
+    static void run(String[] args) {
         if (args.length == 0) {
             throw new RuntimeException(
                     "No commands specified!");
         }
+        // Commands on an existing repository hold its lock, so concurrent gitlet processes take turns
+        boolean locking = !args[0].equals("init") && !args[0].equals("daemon")
+                && Repository.GITLET_DIR.isDirectory();
+        if (locking) {
+            LockFile.lockRepository();
+        }
+        try {
+            if (locking) {
+                Repository.checkFormat();
+                // Repositories made before the fan-out directories get them on first use
+                ObjectStore.upgradeLayout();
+            }
+            dispatch(args);
+        } finally {
+            if (locking) {
+                LockFile.unlockRepository();
+            }
+        }
+    }
+
+    private static void dispatch(String[] args) {
         String firstArg = args[0];
         switch(firstArg) {
             case "init":
@@ -22,10 +67,11 @@ public class Main {
                 Repository.init();
                 break;
             case "add":
-                // handle the `add [filename]` command
-                validateNumArgs("add", args, 2);
-                String filename = args[1];
-                Repository.add(filename);
+                // handle the `add [filename] ...` command
+                if (args.length < 2) {
+                    validateNumArgs("add", args, 2);
+                }
+                Repository.add(Arrays.copyOfRange(args, 1, args.length));
                 break;
             case "commit":
                 validateNumArgs("commit", args, 2);
@@ -38,17 +84,43 @@ public class Main {
                 Repository.rm(removalFileName);
                 break;
             case "log":
-                validateNumArgs("log", args, 1);
-                Repository.log();
+                // Usage: log [-n count] [--since date] [-- file or directory]
+                int maxCount = -1;
+                long since = Long.MIN_VALUE;
+                String logPath = null;
+                for (int i = 1; i < args.length; i += 2) {
+                    if (i + 1 == args.length || logPath != null) {
+                        throw new RuntimeException("Wrong way of using log command.");
+                    }
+                    if (args[i].equals("-n")) {
+                        maxCount = parseCount(args[i + 1]);
+                    } else if (args[i].equals("--since")) {
+                        since = Commit.parseDate(args[i + 1]);
+                    } else if (args[i].equals("--")) {
+                        logPath = args[i + 1];
+                    } else {
+                        throw new RuntimeException("Wrong way of using log command.");
+                    }
+                }
+                Repository.log(maxCount, since, logPath);
                 break;
             case "global-log":
                 validateNumArgs("global-log", args, 1);
                 Repository.globalLog();
                 break;
             case "find":
-                validateNumArgs("global-log", args, 2);
-                String findMessage = args[1];
-                Repository.find(findMessage);
+                validateNumArgs("find", args, 2, 3);
+                if (args.length == 2) {
+                    Repository.find(args[1]);
+                } else if (args[1].equals("--prefix")) {
+                    // Usage: find --prefix [message prefix]
+                    Repository.findPrefix(args[2]);
+                } else if (args[1].equals("--contains")) {
+                    // Usage: find --contains [text]
+                    Repository.findContaining(args[2]);
+                } else {
+                    throw new RuntimeException("Wrong way of using find command.");
+                }
                 break;
             case "status":
                 validateNumArgs("add", args, 1);
@@ -88,10 +160,30 @@ public class Main {
                 String resetCommitID = args[1];
                 Repository.reset(resetCommitID);
                 break;
+            case "gc":
+                validateNumArgs("gc", args, 1);
+                Repository.gc();
+                break;
+            case "daemon":
+                validateNumArgs("daemon", args, 1, 2);
+                if (args.length == 1) {
+                    // Usage: daemon, serves until "daemon stop"
+                    Daemon.serve();
+                } else if (args[1].equals("stop")) {
+                    // Only reached when no daemon answered
+                    throw Utils.error("No gitlet daemon is running.");
+                } else {
+                    throw new RuntimeException("Wrong way of using daemon command.");
+                }
+                break;
             case "merge":
                 validateNumArgs("merge", args, 2);
                 String mergeBranchName = args[1];
-                Repository.reset(mergeBranchName);
+                Repository.merge(mergeBranchName);
+                break;
+            case "diff":
+                validateNumArgs("diff", args, 1, 2, 3);
+                Repository.diff(Arrays.copyOfRange(args, 1, args.length));
                 break;
         }
     }
@@ -108,6 +200,19 @@ public class Main {
     }
 
 
+    private static int parseCount(String count) {
+        try {
+            int result = Integer.parseInt(count);
+            if (result >= 0) {
+                return result;
+            }
+        } catch (NumberFormatException excp) {
+            // Reported below
+        }
+        throw Utils.error("Invalid count: %s", count);
+    }
+
+
     public static void validateCheckoutArgs(String[] args) {
         int numArgs = args.length;
         switch (numArgs) {
@@ -0,0 +1,436 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/**
+ * An inverted index from commit messages to the commit graph rows that
+ * have them, so find doesn't have to look at every commit.
+ *
+ * Every commit is posted under a few keys: its whole message, each
+ * distinct word (a run of letters and digits, lower cased) and the first
+ * PREFIX_LENGTH characters of the message.  Keys are only kept as a
+ * 32-bit hash, so every hit is checked against the message in the commit
+ * graph before it's reported.
+ *
+ * message-index: "GMIX", version (4), number of buckets (4), number of
+ *                graph rows indexed (4), then a head record for every
+ *                bucket (4), then the records: key hash (4), commit graph
+ *                row (4), next record in the same bucket (4).  The end of
+ *                a chain is -1.
+ *
+ * message-words: every distinct word posted, sorted, one per line.  A word
+ *                of a find --contains query that touches an end of the
+ *                query may be cut short, so it is looked up as every
+ *                dictionary word it could be part of.
+ *
+ * New postings are appended and pushed on the front of their bucket, and
+ * the number of indexed rows is updated last, so an interrupted update
+ * only leaves records that are posted again.  New words go into the
+ * dictionary before that.  When there are more than MAX_LOAD records per
+ * bucket the index is rebuilt with twice the buckets.
+ *
+ *  @author AlexMan
+ */
+class MessageIndex {
+
+    static final File INDEX_FILE = join(Repository.GITLET_DIR, "message-index");
+    static final File WORDS_FILE = join(Repository.GITLET_DIR, "message-words");
+
+    /** Length of the message prefix that is indexed. */
+    static final int PREFIX_LENGTH = 4;
+
+    private static final byte[] MAGIC = {'G', 'M', 'I', 'X'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int INDEXED_ROWS = 12;
+    private static final int RECORD_SIZE = 12;
+    private static final int MIN_BUCKETS = 1 << 10;
+    private static final int MAX_LOAD = 4;
+
+    // Key kinds, so that a word and a whole message with the same text get different keys
+    private static final char MESSAGE_KEY = 'm';
+    private static final char WORD_KEY = 'w';
+    private static final char PREFIX_KEY = 'p';
+
+    private final CommitGraph graph;
+    private ByteBuffer index;
+    private int buckets;
+    private int indexedRows;
+    private int records;
+    // The word dictionary, sorted, read on first use
+    private String[] sortedWords;
+
+    private MessageIndex(CommitGraph graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * Open the message index of GRAPH, first posting any commits that
+     * aren't indexed yet (building the whole index if there's none).
+     */
+    static MessageIndex load(CommitGraph graph) {
+        MessageIndex result = new MessageIndex(graph);
+        if (!INDEX_FILE.exists() || !WORDS_FILE.exists()) {
+            rebuild(graph, MIN_BUCKETS);
+        }
+        result.map();
+        if (result.indexedRows > graph.size()) {
+            // The graph was rebuilt, so the rows no longer match
+            rebuild(graph, result.buckets);
+            result.map();
+        }
+        result.catchUp();
+        return result;
+    }
+
+    /**
+     * Post the commits of GRAPH that aren't indexed yet, called after
+     * every commit
+     */
+    static void update(CommitGraph graph) {
+        load(graph);
+    }
+
+    /**
+     * Rows of the commits whose message is exactly MESSAGE, in commit order
+     */
+    List<Integer> find(String message) {
+        byte[] target = message.getBytes(StandardCharsets.UTF_8);
+        List<Integer> result = new ArrayList<>();
+        for (int row : candidates(key(MESSAGE_KEY, message)).stream().toArray()) {
+            if (graph.hasMessage(row, target)) {
+                result.add(row);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Rows of the commits whose message starts with PREFIX, in commit order.
+     * Prefixes shorter than PREFIX_LENGTH are matched by scanning the graph.
+     */
+    List<Integer> findPrefix(String prefix) {
+        BitSet rows;
+        if (prefix.length() >= PREFIX_LENGTH) {
+            rows = candidates(key(PREFIX_KEY, prefix.substring(0, PREFIX_LENGTH)));
+        } else {
+            rows = new BitSet(graph.size());
+            rows.set(0, graph.size());
+        }
+        List<Integer> result = new ArrayList<>();
+        for (int row : rows.stream().toArray()) {
+            if (graph.message(row).startsWith(prefix)) {
+                result.add(row);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Rows of the commits whose message contains TEXT, in commit order.
+     * Every word of TEXT narrows down the commits through the index.  A
+     * word with a separator on both sides is looked up as it is; the first
+     * one may end a longer word of the message and the last one may start
+     * one, so they are looked up as every dictionary word that ends with
+     * or starts with them (contains them, when TEXT is a single word).
+     * Only a TEXT without any word is checked against every message.
+     */
+    List<Integer> findContaining(String text) {
+        List<String> words = words(text);
+        boolean openStart = !text.isEmpty() && isWordChar(text.charAt(0));
+        boolean openEnd = !text.isEmpty() && isWordChar(text.charAt(text.length() - 1));
+        // 1. Intersect the postings of the words, widening the ones at either end
+        BitSet rows = new BitSet(graph.size());
+        rows.set(0, graph.size());
+        for (int i = 0; i < words.size(); i += 1) {
+            String word = words.get(i);
+            boolean first = i == 0 && openStart;
+            boolean last = i == words.size() - 1 && openEnd;
+            if (!first && !last) {
+                rows.and(candidates(key(WORD_KEY, word)));
+                continue;
+            }
+            BitSet matches = new BitSet(graph.size());
+            for (String entry : dictionary(word, first, last)) {
+                matches.or(candidates(key(WORD_KEY, entry)));
+            }
+            rows.and(matches);
+        }
+        // 2. Check the message of every candidate
+        List<Integer> result = new ArrayList<>();
+        for (int row : rows.stream().toArray()) {
+            if (graph.message(row).contains(text)) {
+                result.add(row);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The dictionary words WORD may be part of: the ones ending with it if
+     * it may be cut short at the start (FIRST), starting with it if at the
+     * end (LAST), containing it if both
+     */
+    private List<String> dictionary(String word, boolean first, boolean last) {
+        if (sortedWords == null) {
+            sortedWords = readWords();
+        }
+        List<String> result = new ArrayList<>();
+        if (!first) {
+            // The words starting with WORD are a range of the sorted dictionary
+            int i = Arrays.binarySearch(sortedWords, word);
+            for (i = i < 0 ? -i - 1 : i; i < sortedWords.length && sortedWords[i].startsWith(word); i += 1) {
+                result.add(sortedWords[i]);
+            }
+            return result;
+        }
+        for (String entry : sortedWords) {
+            if (last ? entry.contains(word) : entry.endsWith(word)) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Rows posted under KEY, a superset of the rows matching it
+     */
+    private BitSet candidates(int key) {
+        BitSet rows = new BitSet(graph.size());
+        int record = index.getInt(HEADER_SIZE + bucket(key) * 4);
+        while (record >= 0) {
+            int offset = recordOffset(record);
+            if (index.getInt(offset) == key) {
+                rows.set(index.getInt(offset + 4));
+            }
+            record = index.getInt(offset + 8);
+        }
+        return rows;
+    }
+
+    /**
+     * Post the graph rows added since the index was last updated
+     */
+    private void catchUp() {
+        if (indexedRows == graph.size()) {
+            return;
+        }
+        // 1. Add the new words to the dictionary first, so every posted word is in it
+        Set<String> added = new TreeSet<>();
+        for (int row = indexedRows; row < graph.size(); row += 1) {
+            added.addAll(words(graph.message(row)));
+        }
+        Set<String> dictionary = new TreeSet<>(Arrays.asList(readWords()));
+        if (dictionary.addAll(added)) {
+            writeWords(dictionary);
+        }
+        // 2. Post the new rows
+        try (FileChannel channel = FileChannel.open(INDEX_FILE.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            MappedByteBuffer heads = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + buckets * 4L);
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            long end = recordOffset(records);
+            for (int row = indexedRows; row < graph.size(); row += 1) {
+                for (int key : keys(graph.message(row))) {
+                    int head = HEADER_SIZE + bucket(key) * 4;
+                    record.clear();
+                    record.putInt(key).putInt(row).putInt(heads.getInt(head)).flip();
+                    channel.write(record, end);
+                    end += RECORD_SIZE;
+                    heads.putInt(head, records);
+                    records += 1;
+                }
+            }
+            heads.putInt(INDEXED_ROWS, graph.size());
+            heads.force();
+        } catch (IOException excp) {
+            throw error("Cannot update the message index: %s", excp.getMessage());
+        }
+        // Chains grow with the records per bucket, keep them short
+        if (records > (long) buckets * MAX_LOAD) {
+            rebuild(graph, buckets * 2);
+        }
+        map();
+    }
+
+    /**
+     * Write a new index of every commit in GRAPH with BUCKETS buckets
+     */
+    private static void rebuild(CommitGraph graph, int buckets) {
+        // 1. Collect the postings and chain them through each bucket
+        List<int[]> postings = new ArrayList<>();
+        Set<String> dictionary = new TreeSet<>();
+        for (int row = 0; row < graph.size(); row += 1) {
+            String message = graph.message(row);
+            for (int key : keys(message)) {
+                postings.add(new int[] {key, row});
+            }
+            dictionary.addAll(words(message));
+        }
+        writeWords(dictionary);
+        while ((long) buckets * MAX_LOAD < postings.size()) {
+            buckets *= 2;
+        }
+        int[] heads = new int[buckets];
+        Arrays.fill(heads, -1);
+        int[] next = new int[postings.size()];
+        for (int i = 0; i < postings.size(); i += 1) {
+            int b = bucket(postings.get(i)[0], buckets);
+            next[i] = heads[b];
+            heads[b] = i;
+        }
+        // 2. Write it beside the old index and swap it in
+        File temp = join(Repository.GITLET_DIR, INDEX_FILE.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temp.toPath()), ObjectStore.BUFFER_SIZE))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(buckets);
+            out.writeInt(graph.size());
+            for (int head : heads) {
+                out.writeInt(head);
+            }
+            for (int i = 0; i < postings.size(); i += 1) {
+                out.writeInt(postings.get(i)[0]);
+                out.writeInt(postings.get(i)[1]);
+                out.writeInt(next[i]);
+            }
+        } catch (IOException excp) {
+            temp.delete();
+            throw error("Cannot write the message index: %s", excp.getMessage());
+        }
+        try {
+            Files.move(temp.toPath(), INDEX_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            throw error("Cannot write the message index: %s", excp.getMessage());
+        }
+    }
+
+    /**
+     * The word dictionary, sorted
+     */
+    private static String[] readWords() {
+        String contents = readContentsAsString(WORDS_FILE);
+        return contents.isEmpty() ? new String[0] : contents.split("\n");
+    }
+
+    /**
+     * Replace the word dictionary with WORDS, given in sorted order
+     */
+    private static void writeWords(Set<String> words) {
+        File temp = join(Repository.GITLET_DIR, WORDS_FILE.getName() + ".tmp");
+        writeContents(temp, String.join("\n", words));
+        try {
+            Files.move(temp.toPath(), WORDS_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            throw error("Cannot write the message words: %s", excp.getMessage());
+        }
+    }
+
+    private void map() {
+        try (FileChannel channel = FileChannel.open(INDEX_FILE.toPath())) {
+            index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException excp) {
+            throw error("Cannot read the message index: %s", excp.getMessage());
+        }
+        for (int i = 0; i < MAGIC.length; i += 1) {
+            if (index.get(i) != MAGIC[i]) {
+                throw error("Corrupt message index");
+            }
+        }
+        if (index.getInt(4) != VERSION) {
+            throw error("Unsupported message index version");
+        }
+        buckets = index.getInt(8);
+        indexedRows = index.getInt(INDEXED_ROWS);
+        records = (index.capacity() - recordOffset(0)) / RECORD_SIZE;
+    }
+
+    private int recordOffset(int record) {
+        return HEADER_SIZE + buckets * 4 + record * RECORD_SIZE;
+    }
+
+    private int bucket(int key) {
+        return bucket(key, buckets);
+    }
+
+    private static int bucket(int key, int buckets) {
+        return key & (buckets - 1);
+    }
+
+    /**
+     * The distinct keys a message is posted under
+     */
+    private static int[] keys(String message) {
+        Set<Integer> keys = new LinkedHashSet<>();
+        keys.add(key(MESSAGE_KEY, message));
+        if (message.length() >= PREFIX_LENGTH) {
+            keys.add(key(PREFIX_KEY, message.substring(0, PREFIX_LENGTH)));
+        }
+        for (String word : words(message)) {
+            keys.add(key(WORD_KEY, word));
+        }
+        return keys.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * The words of TEXT in order, lower cased
+     */
+    private static List<String> words(String text) {
+        List<String> result = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i += 1) {
+            boolean inWord = i < text.length() && isWordChar(text.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                result.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return result;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c);
+    }
+
+    /**
+     * 32-bit hash of a key: FNV-1a over the kind and the UTF-8 text,
+     * finished with the murmur3 mixer so the low bits pick buckets evenly
+     */
+    private static int key(char kind, String text) {
+        int h = 0x811c9dc5;
+        h = (h ^ kind) * 0x01000193;
+        for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+            h = (h ^ (b & 0xff)) * 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
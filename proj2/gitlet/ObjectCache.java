@@ -0,0 +1,143 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Decoded commits, trees and blobs by SHA1 ID, so reading the same object
+ * again in the same process (or the same daemon) doesn't touch the disk.
+ * Objects never change once stored, so entries never go stale; the least
+ * recently used ones are evicted once the cached objects add up to more
+ * than cache.objectBytes (32 MiB by default, 0 turns the cache off).
+ *
+ * The cached objects are shared: whoever gets one from the cache must not
+ * modify it.
+ *
+ *  @author AlexMan
+ */
+class ObjectCache {
+
+    /** Setting for the byte budget of the cache. */
+    static final String BUDGET_KEY = "cache.objectBytes";
+    /** Setting that prints the cache counters to stderr after every command. */
+    static final String STATS_KEY = "cache.stats";
+
+    private static final long DEFAULT_BUDGET = 32L << 20;
+    // Rough cost of an entry on top of the body of the object
+    private static final long OVERHEAD = 128;
+
+    // Entries in access order, the least recently used first
+    private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private static long bytes;
+    private static long hits;
+    private static long misses;
+    private static long evictions;
+
+    private static class Entry {
+        final GitObject object;
+        final long size;
+
+        Entry(GitObject object, long size) {
+            this.object = object;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Get a cached object
+     * @param UID SHA1 ID of the object
+     * @param type The class the object must have
+     * @return The object, null if it's not cached (or has another type)
+     */
+    static synchronized <T extends GitObject> T get(String UID, Class<T> type) {
+        Entry entry = entries.get(UID);
+        if (entry == null || !type.isInstance(entry.object)) {
+            misses += 1;
+            return null;
+        }
+        hits += 1;
+        return type.cast(entry.object);
+    }
+
+    /**
+     * Cache an object that was just read
+     * @param UID SHA1 ID of the object
+     * @param object The decoded object
+     * @param bodySize Length of the object's body, the bulk of its memory
+     */
+    static synchronized void put(String UID, GitObject object, long bodySize) {
+        long budget = Config.getLong(BUDGET_KEY, DEFAULT_BUDGET);
+        long size = bodySize + OVERHEAD;
+        // An object that would push out most of the cache isn't worth keeping
+        if (size > budget / 4) {
+            return;
+        }
+        Entry old = entries.put(UID, new Entry(object, size));
+        if (old != null) {
+            bytes -= old.size;
+        }
+        bytes += size;
+        Iterator<Entry> lru = entries.values().iterator();
+        while (bytes > budget && lru.hasNext()) {
+            bytes -= lru.next().size;
+            lru.remove();
+            evictions += 1;
+        }
+    }
+
+    /**
+     * Add what OBJECT has since built from its body, such as the flattened
+     * files of a commit, to the size of its entry, evicting other objects
+     * to stay within the budget.  Nothing is done if OBJECT isn't the
+     * cached object for UID.
+     * @param UID SHA1 ID of the object
+     * @param object The object the memory hangs off
+     * @param extraSize Bytes of memory added
+     */
+    static synchronized void charge(String UID, GitObject object, long extraSize) {
+        Entry entry = entries.get(UID);
+        if (entry == null || entry.object != object) {
+            return;
+        }
+        long budget = Config.getLong(BUDGET_KEY, DEFAULT_BUDGET);
+        long size = entry.size + extraSize;
+        if (size > budget / 4) {
+            entries.remove(UID);
+            bytes -= entry.size;
+            return;
+        }
+        entries.put(UID, new Entry(object, size));
+        bytes += extraSize;
+        Iterator<Entry> lru = entries.values().iterator();
+        while (bytes > budget && lru.hasNext()) {
+            bytes -= lru.next().size;
+            lru.remove();
+            evictions += 1;
+        }
+    }
+
+    /**
+     * Forget every cached object, once objects have been deleted from the store
+     */
+    static synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * The counters, i.e. "object cache: 12 hits, 3 misses, 0 evictions, 3 objects, 1024 bytes"
+     */
+    static synchronized String stats() {
+        return String.format("object cache: %d hits, %d misses, %d evictions, %d objects, %d bytes",
+                hits, misses, evictions, entries.size(), bytes);
+    }
+
+    /**
+     * Print the counters to stderr if cache.stats is set
+     */
+    static void printStats() {
+        if (Boolean.parseBoolean(Config.get(STATS_KEY, "false"))) {
+            System.err.println(stats());
+        }
+    }
+}
@@ -0,0 +1,577 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static gitlet.Utils.*;
+
+/**
+ * The object database under .gitlet/objects.  Newly created objects are
+ * written loose, one file per object named by its SHA1 ID, in one of 256
+ * fan-out directories named by the first two hex digits of the ID
+ * (objects/3f/a1...), so no directory grows with the whole history; gc
+ * folds them into pack files under .gitlet/objects/pack.  Every read and write of a
+ * commit, tree or blob goes through here, so callers never care where an object
+ * actually lives.
+ *
+ * Every stored object is a small header followed by the Deflate-compressed
+ * body (see ObjectStream).  Commits and trees are stored as encoded by Codec,
+ * blobs as the raw file content, which is streamed in and out in
+ * BUFFER_SIZE pieces so a large file never has to fit in memory.  Large
+ * blobs are stored as a list of shared chunks instead (see Chunker).  The
+ * compression level is the core.compression setting (0-9, -1 for the zlib
+ * default).
+ *
+ *  @author AlexMan
+ */
+class ObjectStore {
+
+    static final File PACK_DIR = join(Repository.OBJECT_DIR, "pack");
+    /** Present once the loose objects live in the fan-out directories. */
+    static final File FANOUT_FILE = join(Repository.OBJECT_DIR, "fanout");
+
+    /** Size of the buffer used to stream object bodies. */
+    static final int BUFFER_SIZE = 1 << 16;
+    private static final int MIN_BUFFER_SIZE = 512;
+
+    /** Setting for the Deflate level of new objects. */
+    static final String COMPRESSION_KEY = "core.compression";
+    /** Setting for flushing each new object to the disk before it gets its name. */
+    static final String FSYNC_KEY = "core.fsyncObjects";
+
+    // Name of a fan-out directory, the first two hex digits of its objects' IDs
+    private static final String FANOUT_NAME = "[0-9a-f]{2}";
+    // Loose objects being written are first created under this prefix
+    private static final String TEMP_PREFIX = "tmp_obj_";
+
+    // Packs opened by this process, loaded on first use
+    private static List<PackFile> packs;
+
+    // The last object rebuilt from a delta by reencode, asked for twice in a row by repack
+    private static String reencodedID;
+    private static byte[] reencoded;
+
+    /**
+     * Store the encoded object BODY under UID, unless the object already exists
+     * @param UID SHA1 ID of the object
+     * @param type Type of the object
+     * @param body The encoded object
+     */
+    static void writeObject(String UID, String type, byte[] body) {
+        if (contains(UID)) {
+            return;
+        }
+        Writer writer = newObject(type, body.length);
+        writer.write(body, 0, body.length);
+        writer.finish(UID);
+    }
+
+    /**
+     * Read the whole body of the object stored under UID
+     * @param UID SHA1 ID of the object
+     * @param expectedType The type the object must have
+     * @return The encoded object
+     */
+    static byte[] readBody(String UID, String expectedType) {
+        try (ObjectStream in = open(UID)) {
+            if (!in.getType().equals(expectedType)) {
+                throw new IllegalArgumentException(UID + " is not a " + expectedType);
+            }
+            return in.readBody();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Open the object UID for reading its body
+     * @param UID SHA1 ID of the object
+     * @return The opened object, positioned at the start of the body
+     */
+    static ObjectStream open(String UID) {
+        try {
+            ObjectStream in = openStored(UID);
+            // A chunked blob reads as the blob it stands for
+            if (in.getType().equals(Chunker.LIST_TYPE)) {
+                return Chunker.open(UID, in);
+            }
+            return in;
+        } catch (IOException excp) {
+            throw error("Corrupt object %s: %s", UID, excp.getMessage());
+        }
+    }
+
+    /**
+     * Return the type of object UID as stored, "chunklist" for a chunked blob
+     */
+    static String getStoredType(String UID) {
+        try (ObjectStream in = openStored(UID)) {
+            return in.getType();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Return the type of the object UID ("commit", "blob", "tree" or "chunk")
+     * from its header, without reading the body.  Chunked blobs are "blob".
+     */
+    static String getType(String UID) {
+        try (ObjectStream in = open(UID)) {
+            return in.getType();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Return the length of the body of object UID from its header, without
+     * reading the body
+     */
+    static long getLength(String UID) {
+        try (ObjectStream in = open(UID)) {
+            return in.getLength();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Start writing a new loose object.  The body is streamed into the
+     * returned writer, and the object only appears in the store once
+     * finish is called with its ID.
+     * @param type Type of the object, recorded in its header
+     * @param length Length of the body in bytes
+     */
+    static Writer newObject(String type, long length) {
+        return new Writer(type, length);
+    }
+
+    /**
+     * Return whether an object with UID exists, packed or loose
+     */
+    static boolean contains(String UID) {
+        for (PackFile pack : getPacks()) {
+            if (pack.contains(UID)) {
+                return true;
+            }
+        }
+        return looseFile(UID).isFile();
+    }
+
+    /**
+     * All the object IDs in the database, packed and loose, in sorted order
+     */
+    static List<String> objectIDs() {
+        TreeSet<String> ids = new TreeSet<>(looseIDs());
+        for (PackFile pack : getPacks()) {
+            ids.addAll(pack.objectIDs());
+        }
+        return new ArrayList<>(ids);
+    }
+
+    /**
+     * The Deflate level of new objects, the core.compression setting
+     * @return -1 (the zlib default) to 9
+     */
+    static int compressionLevel() {
+        int level = Config.getInt(COMPRESSION_KEY, Deflater.DEFAULT_COMPRESSION);
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw error("Bad value for %s in config: %d", COMPRESSION_KEY, level);
+        }
+        return level;
+    }
+
+    /**
+     * Return the chunks the blob UID is stored in, none if it's stored whole
+     */
+    static List<String> chunksOf(String UID) {
+        List<String> ids = new ArrayList<>();
+        try (ObjectStream in = openStored(UID)) {
+            if (in.getType().equals(Chunker.LIST_TYPE)) {
+                Codec.decodeChunkList(UID, in.readBody(), ids, new ArrayList<>());
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return ids;
+    }
+
+    /**
+     * Fold the objects in KEEP into a single new pack, then remove what has
+     * been folded and every object that is in neither KEEP nor SPARE.  The
+     * objects only in SPARE stay loose, an object of a pack getting the
+     * time of its pack, so their age keeps counting.  Versions of the same
+     * file are stored as deltas against each other where that pays off
+     * (see Delta).
+     * @param keep IDs of the objects to pack, all of which exist
+     * @param spare IDs of the objects not to remove, KEEP included
+     * @return The number of objects in the new pack
+     */
+    static int repack(Set<String> keep, Set<String> spare) {
+        List<String> loose = looseIDs();
+        List<PackFile> oldPacks = getPacks();
+        // 1. Spared objects of the old packs go back to being loose, the others go with their pack
+        for (PackFile pack : oldPacks) {
+            for (String UID : pack.objectIDs()) {
+                if (keep.contains(UID) || looseFile(UID).isFile()) {
+                    continue;
+                }
+                if (spare.contains(UID)) {
+                    loosen(UID, pack.lastModified());
+                }
+            }
+        }
+        // 2. Pack what is kept
+        List<String> ids = new ArrayList<>(new TreeSet<>(keep));
+        Map<String, Delta.Planned> deltas = Delta.plan(keep, ObjectStore::storedLength);
+        PACK_DIR.mkdir();
+        File indexFile = PackFile.write(PACK_DIR, ids, new PackFile.ObjectSource() {
+            @Override
+            public long length(String UID) {
+                return storedLength(UID);
+            }
+
+            @Override
+            public InputStream open(String UID) {
+                InputStream raw = openRaw(UID);
+                return raw != null ? raw : new ByteArrayInputStream(reencode(UID));
+            }
+        }, deltas);
+        // 3. Drop the old packs, except when the new pack has the same name
+        for (PackFile pack : oldPacks) {
+            if (pack.getIndexFile().equals(indexFile)) {
+                pack.close();
+            } else {
+                pack.delete();
+            }
+        }
+        // 4. Drop the loose objects now in the new pack and the unwanted ones, and the
+        // temporary files of writers that never finished (none is running, gc holds the lock)
+        for (String UID : loose) {
+            if (keep.contains(UID) || !spare.contains(UID)) {
+                looseFile(UID).delete();
+            }
+        }
+        for (String name : plainFilenamesIn(Repository.OBJECT_DIR)) {
+            if (name.startsWith(TEMP_PREFIX)) {
+                join(Repository.OBJECT_DIR, name).delete();
+            }
+        }
+        // 5. Drop the fan-out directories left empty, deleting one that isn't fails
+        for (String dir : Repository.OBJECT_DIR.list()) {
+            if (dir.matches(FANOUT_NAME)) {
+                join(Repository.OBJECT_DIR, dir).delete();
+            }
+        }
+        packs = null;
+        ObjectCache.clear();
+        return ids.size();
+    }
+
+    /**
+     * IDs of the loose objects last modified at TIME or later, and of the
+     * objects of the packs written since
+     * @param time Milliseconds since the epoch
+     */
+    static Set<String> objectsSince(long time) {
+        Set<String> result = new HashSet<>();
+        for (String UID : looseIDs()) {
+            if (looseFile(UID).lastModified() >= time) {
+                result.add(UID);
+            }
+        }
+        for (PackFile pack : getPacks()) {
+            if (pack.lastModified() >= time) {
+                result.addAll(pack.objectIDs());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Close the packs opened so far, so the next read lists the pack
+     * directory again
+     */
+    static synchronized void reset() {
+        if (packs != null) {
+            for (PackFile pack : packs) {
+                pack.close();
+            }
+            packs = null;
+        }
+    }
+
+    /**
+     * Open the object UID as stored, looking in the packs first
+     * @return The opened object, positioned at the start of the body
+     */
+    private static ObjectStream openStored(String UID) throws IOException {
+        for (PackFile pack : getPacks()) {
+            ObjectStream in = pack.openObject(UID);
+            if (in != null) {
+                return in;
+            }
+        }
+        InputStream loose = openRaw(UID);
+        if (loose == null) {
+            throw new IllegalArgumentException("No object " + UID);
+        }
+        return new ObjectStream(new BufferedInputStream(loose, bufferSize(loose.available())));
+    }
+
+    /**
+     * Size of the buffer for streaming LENGTH bytes: the whole of them, up
+     * to BUFFER_SIZE.  Reading many small objects, as gc does, would
+     * otherwise allocate a full buffer for each.
+     */
+    static int bufferSize(long length) {
+        return (int) Math.max(MIN_BUFFER_SIZE, Math.min(BUFFER_SIZE, length));
+    }
+
+    /**
+     * Open the stored bytes of the object UID, looking in the packs first
+     * @param UID SHA1 ID of the object
+     * @return A stream over the stored bytes, null if there's no such object
+     */
+    private static InputStream openRaw(String UID) {
+        for (PackFile pack : getPacks()) {
+            InputStream in = pack.open(UID);
+            if (in != null) {
+                return in;
+            }
+        }
+        File loose = looseFile(UID);
+        try {
+            return new FileInputStream(loose);
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    /**
+     * Length of the object UID stored whole, as it would be written loose
+     */
+    static long storedLength(String UID) {
+        for (PackFile pack : getPacks()) {
+            long length = pack.length(UID);
+            if (length >= 0) {
+                return length;
+            }
+        }
+        File loose = looseFile(UID);
+        return loose.isFile() ? loose.length() : reencode(UID).length;
+    }
+
+    /**
+     * The stored bytes of an object that is only stored as a delta, as it
+     * would be written loose
+     */
+    private static synchronized byte[] reencode(String UID) {
+        if (!UID.equals(reencodedID)) {
+            byte[] body = readBody(UID, Blob.TYPE);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.writeBytes(ObjectStream.header(Blob.TYPE, body.length));
+            out.writeBytes(Delta.compress(body));
+            reencoded = out.toByteArray();
+            reencodedID = UID;
+        }
+        return reencoded;
+    }
+
+    /**
+     * Write the packed object UID as a loose object last modified at TIME
+     */
+    private static void loosen(String UID, long time) {
+        File temp = null;
+        try (InputStream in = openRaw(UID)) {
+            temp = Files.createTempFile(Repository.OBJECT_DIR.toPath(), TEMP_PREFIX, null).toFile();
+            Files.copy(in != null ? in : new ByteArrayInputStream(reencode(UID)), temp.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            temp.setLastModified(time);
+            moveInto(temp, UID);
+        } catch (IOException excp) {
+            if (temp != null) {
+                temp.delete();
+            }
+            throw error("Cannot write object %s: %s", UID, excp.getMessage());
+        }
+    }
+
+    /**
+     * Move the loose objects of a repository made before the fan-out
+     * directories into them, once.  Called with the repository lock held.
+     */
+    static void upgradeLayout() {
+        if (FANOUT_FILE.exists() || !Repository.OBJECT_DIR.isDirectory()) {
+            return;
+        }
+        for (String name : plainFilenamesIn(Repository.OBJECT_DIR)) {
+            File file = join(Repository.OBJECT_DIR, name);
+            try {
+                if (name.startsWith(TEMP_PREFIX)) {
+                    // Left by a writer that never finished
+                    file.delete();
+                } else if (name.length() == UID_LENGTH) {
+                    moveInto(file, name);
+                }
+            } catch (IOException excp) {
+                throw error("Cannot move object %s: %s", name, excp.getMessage());
+            }
+        }
+        // Only once every object has moved, so an interrupted upgrade starts over
+        writeContents(FANOUT_FILE, new byte[0]);
+    }
+
+    /**
+     * The file of the loose object UID, named by the rest of the ID in the
+     * directory named by its first two hex digits
+     */
+    static File looseFile(String UID) {
+        return join(Repository.OBJECT_DIR, UID.substring(0, 2), UID.substring(2));
+    }
+
+    /**
+     * Give FILE the name of the loose object UID, replacing any file there
+     */
+    private static void moveInto(File file, String UID) throws IOException {
+        File target = looseFile(UID);
+        target.getParentFile().mkdir();
+        Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static List<String> looseIDs() {
+        List<String> result = new ArrayList<>();
+        String[] dirs = Repository.OBJECT_DIR.list();
+        if (dirs == null) {
+            return result;
+        }
+        for (String dir : dirs) {
+            // Only the 256 fan-out directories are listed, each holding a small share of the objects
+            String[] names = dir.matches(FANOUT_NAME) ? join(Repository.OBJECT_DIR, dir).list() : null;
+            if (names == null) {
+                continue;
+            }
+            for (String name : names) {
+                if (name.length() == UID_LENGTH - 2) {
+                    result.add(dir + name);
+                }
+            }
+        }
+        return result;
+    }
+
+    // Synchronized since checkout reads objects from several threads
+    private static synchronized List<PackFile> getPacks() {
+        if (packs == null) {
+            packs = new ArrayList<>();
+            for (File file : packIndexFiles()) {
+                packs.add(new PackFile(file));
+            }
+        }
+        return packs;
+    }
+
+    private static List<File> packIndexFiles() {
+        List<File> result = new ArrayList<>();
+        List<String> names = plainFilenamesIn(PACK_DIR);
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(".idx")) {
+                    result.add(join(PACK_DIR, name));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A loose object being written.  The header and compressed body go to a
+     * temporary file, which is renamed to the object's ID by finish.
+     */
+    static class Writer {
+        private final File temp;
+        private final Deflater deflater;
+        private final OutputStream out;
+        private final long length;
+        private long written;
+
+        private Writer(String type, long length) {
+            // A bad type is rejected before the temporary file exists
+            byte[] header = ObjectStream.header(type, length);
+            this.length = length;
+            this.deflater = new Deflater(compressionLevel());
+            try {
+                this.temp = Files.createTempFile(Repository.OBJECT_DIR.toPath(), TEMP_PREFIX, null).toFile();
+                OutputStream file = new BufferedOutputStream(Files.newOutputStream(temp.toPath()), BUFFER_SIZE);
+                file.write(header);
+                this.out = new DeflaterOutputStream(file, deflater, BUFFER_SIZE);
+            } catch (IOException excp) {
+                deflater.end();
+                throw error("Cannot write object: %s", excp.getMessage());
+            }
+        }
+
+        void write(byte[] bytes, int off, int len) {
+            try {
+                out.write(bytes, off, len);
+                written += len;
+            } catch (IOException excp) {
+                abort();
+                throw error("Cannot write object: %s", excp.getMessage());
+            }
+        }
+
+        /**
+         * Make the object visible under UID.  If the object already exists
+         * the new copy is simply dropped.
+         */
+        void finish(String UID) {
+            try {
+                out.close();
+                deflater.end();
+                if (written != length) {
+                    throw new IOException("expected " + length + " bytes, got " + written);
+                }
+                if (contains(UID)) {
+                    temp.delete();
+                } else {
+                    if (Boolean.parseBoolean(Config.get(FSYNC_KEY, "false"))) {
+                        LockFile.sync(temp);
+                    }
+                    moveInto(temp, UID);
+                }
+            } catch (IOException excp) {
+                temp.delete();
+                throw error("Cannot write object %s: %s", UID, excp.getMessage());
+            }
+        }
+
+        void abort() {
+            try {
+                out.close();
+            } catch (IOException excp) {
+                // Being thrown away anyway
+            }
+            deflater.end();
+            temp.delete();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package gitlet;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.Utils.*;
+
+/**
+ * A stored object opened for reading.  Every object in the store starts
+ * with a header, followed by its body:
+ *
+ * "GLO", the format version (1), the type code (1), the length of the
+ * uncompressed body (8), then the body compressed with Deflate.
+ *
+ * The header is parsed when the stream is opened, and reading the stream
+ * yields the uncompressed body.
+ *
+ *  @author AlexMan
+ */
+class ObjectStream extends FilterInputStream {
+
+    /** The format version written for new objects. */
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 13;
+    private static final byte[] MAGIC = {'G', 'L', 'O'};
+    // Type names by their code in the header
+    private static final String[] TYPES = {null, "commit", "blob", "tree", "chunk", "chunklist"};
+
+    private final String type;
+    private final long length;
+    private Inflater inflater;
+
+    /**
+     * Parse the header of the stored object read from IN
+     * @param in The stored bytes of the object
+     */
+    ObjectStream(InputStream in) throws IOException {
+        super(in);
+        byte[] header = in.readNBytes(HEADER_SIZE);
+        if (header.length != HEADER_SIZE || !Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC)) {
+            throw new IOException("bad object header");
+        }
+        ByteBuffer fields = ByteBuffer.wrap(header, MAGIC.length, HEADER_SIZE - MAGIC.length);
+        int version = fields.get();
+        int code = fields.get();
+        if (version != VERSION || code <= 0 || code >= TYPES.length) {
+            throw new IOException("unsupported object format");
+        }
+        this.type = TYPES[code];
+        this.length = fields.getLong();
+        this.inflater = new Inflater();
+        // The compressed body is about as long as the body at most
+        this.in = new InflaterInputStream(in, inflater, ObjectStore.bufferSize(length));
+    }
+
+    /**
+     * A stream over a body put together from other objects, i.e. the
+     * content of a chunked blob
+     * @param type Type of the object
+     * @param length Length of the body
+     * @param body The body itself, not compressed
+     */
+    ObjectStream(String type, long length, InputStream body) {
+        super(body);
+        this.type = type;
+        this.length = length;
+    }
+
+    /**
+     * The header written in front of the compressed body of an object
+     * @param type Type of the object
+     * @param length Length of the uncompressed body
+     * @throws IllegalArgumentException if TYPE has no type code
+     */
+    static byte[] header(String type, long length) {
+        int code = Arrays.asList(TYPES).indexOf(type);
+        if (code <= 0) {
+            throw new IllegalArgumentException("No type code for " + type);
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC);
+        header.put((byte) VERSION);
+        header.put((byte) code);
+        header.putLong(length);
+        return header.array();
+    }
+
+    String getType() {
+        return type;
+    }
+
+    /**
+     * Length of the uncompressed body in bytes
+     */
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * Read the whole body into memory.  Only meant for objects known to be
+     * small, such as commits.
+     */
+    byte[] readBody() throws IOException {
+        if (length > Integer.MAX_VALUE - 8) {
+            throw error("Object too large to be read into memory");
+        }
+        byte[] body = readNBytes((int) length);
+        if (body.length != length) {
+            throw new IOException("truncated object");
+        }
+        return body;
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        if (inflater != null) {
+            inflater.end();
+        }
+    }
+}
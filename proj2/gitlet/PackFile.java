@@ -0,0 +1,434 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static gitlet.Utils.*;
+
+/**
+ * A pack file and its index.  A pack holds many objects appended one after
+ * another in a single file, so that the object database does not need one
+ * inode per object.
+ *
+ * pack-XXXX.pack: "GPAK", version, object count, then for every object
+ *                 a kind byte, the length of the data (8 bytes) and the data:
+ *                 FULL: the object as stored loose (header and compressed body)
+ *                 DELTA: the raw ID of a base blob in the same pack, then
+ *                 the compressed delta that turns its body into this blob's
+ *                 (see Delta).
+ * pack-XXXX.idx:  "GIDX", version, a fanout table of 256 cumulative counts
+ *                 (fanout[b] = number of IDs whose first byte is <= b),
+ *                 the sorted raw SHA-1 IDs and the pack offset of each object.
+ *
+ * The index is memory mapped, so a lookup is a fanout read followed by a
+ * binary search over at most the IDs sharing the first byte.
+ *
+ *  @author AlexMan
+ */
+class PackFile {
+
+    private static final byte[] PACK_MAGIC = {'G', 'P', 'A', 'K'};
+    private static final byte[] INDEX_MAGIC = {'G', 'I', 'D', 'X'};
+    private static final int VERSION = 1;
+    private static final int FANOUT_SIZE = 256;
+    // magic + version
+    private static final int HEADER_SIZE = 8;
+    private static final int FANOUT_OFFSET = HEADER_SIZE;
+    private static final int IDS_OFFSET = FANOUT_OFFSET + 4 * FANOUT_SIZE;
+
+    /** Entry kind: the data is the complete stored object. */
+    static final byte FULL = 1;
+    /** Entry kind: the data is a delta against another blob. */
+    static final byte DELTA = 2;
+    // kind + data length
+    private static final int ENTRY_HEADER_SIZE = 9;
+
+    // The .pack file, kept open for positional reads
+    private final FileChannel pack;
+    // The mapped .idx file
+    private final MappedByteBuffer index;
+    // Number of objects in this pack
+    private final int count;
+    private final File packFile;
+    private final File indexFile;
+
+    /**
+     * Open the pack described by the index file INDEXFILE
+     * @param indexFile pack-XXXX.idx, with pack-XXXX.pack next to it
+     */
+    PackFile(File indexFile) {
+        this.indexFile = indexFile;
+        String name = indexFile.getName();
+        this.packFile = join(indexFile.getParentFile(), name.substring(0, name.length() - 4) + ".pack");
+        try (FileChannel idx = FileChannel.open(indexFile.toPath())) {
+            this.index = idx.map(FileChannel.MapMode.READ_ONLY, 0, idx.size());
+            this.pack = FileChannel.open(packFile.toPath());
+        } catch (IOException excp) {
+            throw error("Corrupt pack %s: %s", name, excp.getMessage());
+        }
+        for (int i = 0; i < INDEX_MAGIC.length; i += 1) {
+            if (index.get(i) != INDEX_MAGIC[i]) {
+                throw error("Corrupt pack index %s", name);
+            }
+        }
+        this.count = index.getInt(FANOUT_OFFSET + 4 * (FANOUT_SIZE - 1));
+    }
+
+    /**
+     * Find the position of UID in the sorted ID table
+     * @param UID SHA1 ID of the object
+     * @return The position of UID, or -1 if this pack does not contain it
+     */
+    int position(String UID) {
+        if (UID.length() != UID_LENGTH) {
+            return -1;
+        }
+        byte[] key = hexToBytes(UID);
+        int first = key[0] & 0xff;
+        // 1. The fanout table narrows the search to the IDs starting with the same byte
+        int lo = first == 0 ? 0 : index.getInt(FANOUT_OFFSET + 4 * (first - 1));
+        int hi = index.getInt(FANOUT_OFFSET + 4 * first) - 1;
+        // 2. Binary search over the remaining IDs
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareID(mid, key);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return whether this pack contains the object UID
+     */
+    boolean contains(String UID) {
+        return position(UID) >= 0;
+    }
+
+    /**
+     * Open object UID for reading its body.  A delta is applied to its base
+     * when the body is first read, so asking for the type or length costs
+     * no more than for a whole object.  The base is read through
+     * Blob.fromFile so that the bases of a chain of deltas come from the
+     * object cache once they have been rebuilt.
+     * @param UID SHA1 ID of the object
+     * @return The opened object, or null if this pack does not contain it
+     */
+    ObjectStream openObject(String UID) throws IOException {
+        long offset = offset(UID);
+        if (offset < 0) {
+            return null;
+        }
+        ByteBuffer header = entryHeader(UID, offset);
+        byte kind = header.get();
+        long length = header.getLong();
+        if (kind == FULL) {
+            return new ObjectStream(new BufferedInputStream(
+                    new EntryStream(offset + ENTRY_HEADER_SIZE, length), ObjectStore.bufferSize(length)));
+        }
+        // A delta is always a blob, rebuilt only once its body is read
+        byte[] data = new byte[(int) length];
+        readFully(ByteBuffer.wrap(data), offset + ENTRY_HEADER_SIZE);
+        return new ObjectStream(Blob.TYPE, Delta.targetLength(data, UID_BYTES), new DeltaStream(data));
+    }
+
+    /**
+     * Open the stored bytes of object UID for reading, without copying them
+     * out of the pack first
+     * @param UID SHA1 ID of the object
+     * @return A stream over the stored bytes, or null if this pack does not
+     *         contain it or only has it as a delta
+     */
+    InputStream open(String UID) {
+        long offset = offset(UID);
+        if (offset < 0) {
+            return null;
+        }
+        ByteBuffer header = entryHeader(UID, offset);
+        if (header.get() != FULL) {
+            return null;
+        }
+        return new EntryStream(offset + ENTRY_HEADER_SIZE, header.getLong());
+    }
+
+    /**
+     * Length of the stored bytes of object UID
+     * @param UID SHA1 ID of the object
+     * @return The length, or -1 if this pack does not contain it or only
+     *         has it as a delta
+     */
+    long length(String UID) {
+        long offset = offset(UID);
+        if (offset < 0) {
+            return -1;
+        }
+        ByteBuffer header = entryHeader(UID, offset);
+        return header.get() == FULL ? header.getLong() : -1;
+    }
+
+    /**
+     * Offset of the entry of UID in the pack, -1 if it isn't in this pack
+     */
+    private long offset(String UID) {
+        int pos = position(UID);
+        return pos < 0 ? -1 : index.getLong(IDS_OFFSET + UID_BYTES * count + 8 * pos);
+    }
+
+    /**
+     * Read the kind and data length of the entry at OFFSET
+     */
+    private ByteBuffer entryHeader(String UID, long offset) {
+        try {
+            ByteBuffer header = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+            readFully(header, offset);
+            header.flip();
+            byte kind = header.get(0);
+            if (kind != FULL && kind != DELTA) {
+                throw error("Unknown pack entry kind %d for %s", kind, UID);
+            }
+            return header;
+        } catch (IOException excp) {
+            throw error("Cannot read %s from %s: %s", UID, packFile.getName(), excp.getMessage());
+        }
+    }
+
+    /**
+     * All the object IDs in this pack, in sorted order
+     */
+    List<String> objectIDs() {
+        List<String> result = new ArrayList<>(count);
+        byte[] id = new byte[UID_BYTES];
+        for (int i = 0; i < count; i += 1) {
+            index.get(IDS_OFFSET + UID_BYTES * i, id);
+            result.add(bytesToHex(id, 0, UID_BYTES));
+        }
+        return result;
+    }
+
+    int size() {
+        return count;
+    }
+
+    File getIndexFile() {
+        return indexFile;
+    }
+
+    /**
+     * When the pack was written, in milliseconds since the epoch
+     */
+    long lastModified() {
+        return packFile.lastModified();
+    }
+
+    /**
+     * Release the open pack file and delete both files of this pack
+     */
+    void delete() {
+        close();
+        packFile.delete();
+        indexFile.delete();
+    }
+
+    void close() {
+        try {
+            pack.close();
+        } catch (IOException excp) {
+            // Nothing left to release
+        }
+    }
+
+    /**
+     * Write a new pack containing the objects IDS in the directory DIR
+     * @param dir The pack directory
+     * @param ids Sorted object IDs to be packed
+     * @param source Where the stored bytes of each object come from
+     * @param deltas The objects to be stored as deltas, with their bases
+     * @return The index file of the new pack
+     */
+    static File write(File dir, List<String> ids, ObjectSource source, Map<String, Delta.Planned> deltas) {
+        String name = "pack-" + sha1(String.join("", ids));
+        File packTemp = join(dir, name + ".pack.tmp");
+        File indexTemp = join(dir, name + ".idx.tmp");
+        long[] offsets = new long[ids.size()];
+        try {
+            // 1. Append every object to the pack, remembering where it starts
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(packTemp.toPath())))) {
+                out.write(PACK_MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(ids.size());
+                long offset = 12;
+                for (int i = 0; i < ids.size(); i += 1) {
+                    offsets[i] = offset;
+                    Delta.Planned delta = deltas.get(ids.get(i));
+                    if (delta != null) {
+                        out.writeByte(DELTA);
+                        out.writeLong(UID_BYTES + delta.data.length);
+                        out.write(hexToBytes(delta.baseID));
+                        out.write(delta.data);
+                        offset += ENTRY_HEADER_SIZE + UID_BYTES + delta.data.length;
+                        continue;
+                    }
+                    long length = source.length(ids.get(i));
+                    out.writeByte(FULL);
+                    out.writeLong(length);
+                    try (InputStream in = source.open(ids.get(i))) {
+                        if (in.transferTo(out) != length) {
+                            throw new IOException("object " + ids.get(i) + " changed while packing");
+                        }
+                    }
+                    offset += ENTRY_HEADER_SIZE + length;
+                }
+            }
+            // 2. Write the fanout table, the sorted IDs and their offsets
+            int[] fanout = new int[FANOUT_SIZE];
+            for (String id : ids) {
+                fanout[Integer.parseInt(id.substring(0, 2), 16)] += 1;
+            }
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(indexTemp.toPath())))) {
+                out.write(INDEX_MAGIC);
+                out.writeInt(VERSION);
+                int total = 0;
+                for (int i = 0; i < FANOUT_SIZE; i += 1) {
+                    total += fanout[i];
+                    out.writeInt(total);
+                }
+                for (String id : ids) {
+                    out.write(hexToBytes(id));
+                }
+                for (long offset : offsets) {
+                    out.writeLong(offset);
+                }
+            }
+            // 3. The pack becomes visible only once the index is in place
+            File packFile = join(dir, name + ".pack");
+            File indexFile = join(dir, name + ".idx");
+            Files.move(packTemp.toPath(), packFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(indexTemp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return indexFile;
+        } catch (IOException excp) {
+            packTemp.delete();
+            indexTemp.delete();
+            throw error("Cannot write pack: %s", excp.getMessage());
+        }
+    }
+
+    /**
+     * Supplies the stored bytes of the objects being packed
+     */
+    interface ObjectSource {
+        long length(String UID);
+
+        InputStream open(String UID);
+    }
+
+    /**
+     * Reads one entry of the pack through positional reads on the shared
+     * pack channel
+     */
+    private class EntryStream extends InputStream {
+        private long position;
+        private final long end;
+
+        EntryStream(long position, long length) {
+            this.position = position;
+            this.end = position + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            len = (int) Math.min(len, end - position);
+            int n = pack.read(ByteBuffer.wrap(b, off, len), position);
+            if (n < 0) {
+                throw new IOException("unexpected end of pack");
+            }
+            position += n;
+            return n;
+        }
+    }
+
+    /**
+     * The body of a delta entry, applying the delta to its base on the
+     * first read
+     */
+    private static class DeltaStream extends InputStream {
+        // The base ID followed by the compressed delta
+        private byte[] data;
+        private InputStream body;
+
+        DeltaStream(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return body().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return body().read(b, off, len);
+        }
+
+        private InputStream body() {
+            if (body == null) {
+                String baseID = bytesToHex(data, 0, UID_BYTES);
+                byte[] delta = Delta.decompress(Arrays.copyOfRange(data, UID_BYTES, data.length));
+                body = new ByteArrayInputStream(Delta.apply(Blob.fromFile(baseID).getFileContent(), delta));
+                data = null;
+            }
+            return body;
+        }
+    }
+
+    private int compareID(int position, byte[] key) {
+        int base = IDS_OFFSET + UID_BYTES * position;
+        for (int i = 0; i < UID_BYTES; i += 1) {
+            int a = index.get(base + i) & 0xff;
+            int b = key[i] & 0xff;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return 0;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = pack.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("unexpected end of pack");
+            }
+            position += n;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+
+import static gitlet.Utils.*;
+
+/**
+ * A Bloom filter of the paths every commit changed, so that a path's
+ * history can skip almost every commit that didn't touch it without
+ * reading the commit or its trees.
+ *
+ * The changed paths of a commit are the files that differ from its first
+ * parent, plus every directory above them, so that a directory matches
+ * the commits that changed a file in it.  Each path sets HASHES bits of a
+ * filter of BITS_PER_PATH bits per path, giving about 1% false positives;
+ * a commit changing more than MAX_PATHS paths gets a one-byte filter with
+ * every bit set, which matches everything.
+ *
+ * commit-bloom:      "GCBF", version (4), then for every commit graph row,
+ *                    in order, the offset (8) and length (4) of its filter
+ *                    in commit-bloom-data.
+ * commit-bloom-data: the filters one after another.
+ *
+ * Filters are added for the new graph rows after every commit, the filter
+ * first and its record last, so an interrupted update only leaves unused
+ * bytes.  The files are rebuilt when the graph is.
+ *
+ *  @author AlexMan
+ */
+class PathFilter {
+
+    static final File INDEX_FILE = join(Repository.GITLET_DIR, "commit-bloom");
+    static final File DATA_FILE = join(Repository.GITLET_DIR, "commit-bloom-data");
+
+    private static final byte[] MAGIC = {'G', 'C', 'B', 'F'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = 12;
+    private static final int BITS_PER_PATH = 10;
+    private static final int HASHES = 7;
+    private static final int MAX_PATHS = 512;
+
+    private final CommitGraph graph;
+    private ByteBuffer records;
+    private ByteBuffer data;
+    private int filteredRows;
+
+    private PathFilter(CommitGraph graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * Open the path filters of GRAPH, first adding the filters of any
+     * commits that don't have one yet (all of them if there are no filters).
+     */
+    static PathFilter load(CommitGraph graph) {
+        PathFilter result = new PathFilter(graph);
+        if (!INDEX_FILE.exists() || !DATA_FILE.exists()) {
+            create();
+        }
+        result.map();
+        if (result.filteredRows > graph.size()) {
+            // The graph was rebuilt, so the rows no longer match
+            create();
+            result.map();
+        }
+        result.catchUp();
+        return result;
+    }
+
+    /**
+     * Add the filters of the commits of GRAPH that don't have one yet,
+     * called after every commit
+     */
+    static void update(CommitGraph graph) {
+        load(graph);
+    }
+
+    /**
+     * Return whether the commit at ROW may have changed PATH.  False means
+     * it certainly didn't.
+     * @param path A file or directory, i.e. "src/Main.java" or "src"
+     */
+    boolean mayHaveChanged(int row, String path) {
+        int offset = HEADER_SIZE + row * RECORD_SIZE;
+        int start = (int) records.getLong(offset);
+        int length = records.getInt(offset + 8);
+        if (length == 0) {
+            return false;
+        }
+        long bits = length * 8L;
+        long h = hash(path);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        for (int i = 0; i < HASHES; i += 1) {
+            long bit = Math.floorMod(h1 + i * h2, bits);
+            if ((data.get(start + (int) (bit >>> 3)) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The filter of the paths the commit at ROW changed from its first parent
+     */
+    private byte[] filterOf(int row) {
+        int parent = graph.firstParent(row);
+        String parentTree = parent < 0 ? Tree.EMPTY_ID : Commit.fromFile(graph.getUID(parent)).getTreeID();
+        String tree = Commit.fromFile(graph.getUID(row)).getTreeID();
+        // 1. The changed files and the directories they are in
+        Set<String> paths = new HashSet<>();
+        for (String path : Tree.diff(parentTree, tree).keySet()) {
+            for (int slash = path.indexOf('/'); slash >= 0; slash = path.indexOf('/', slash + 1)) {
+                paths.add(path.substring(0, slash));
+            }
+            paths.add(path);
+        }
+        if (paths.isEmpty()) {
+            return new byte[0];
+        }
+        if (paths.size() > MAX_PATHS) {
+            return new byte[] {(byte) 0xff};
+        }
+        // 2. Set HASHES bits for each of them
+        byte[] filter = new byte[(paths.size() * BITS_PER_PATH + 7) / 8];
+        long bits = filter.length * 8L;
+        for (String path : paths) {
+            long h = hash(path);
+            int h1 = (int) h;
+            int h2 = (int) (h >>> 32) | 1;
+            for (int i = 0; i < HASHES; i += 1) {
+                long bit = Math.floorMod(h1 + i * h2, bits);
+                filter[(int) (bit >>> 3)] |= 1 << (bit & 7);
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * Add the filters of the graph rows that don't have one yet
+     */
+    private void catchUp() {
+        if (filteredRows == graph.size()) {
+            return;
+        }
+        try (FileOutputStream dataOut = new FileOutputStream(DATA_FILE, true);
+             FileChannel index = FileChannel.open(INDEX_FILE.toPath(), StandardOpenOption.WRITE)) {
+            // A record cut short by an interrupted update is written again
+            long at = HEADER_SIZE + (long) filteredRows * RECORD_SIZE;
+            index.truncate(at);
+            long end = DATA_FILE.length();
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            for (int row = filteredRows; row < graph.size(); row += 1) {
+                byte[] filter = filterOf(row);
+                dataOut.write(filter);
+                record.clear();
+                record.putLong(end).putInt(filter.length).flip();
+                index.write(record, at);
+                at += RECORD_SIZE;
+                end += filter.length;
+            }
+        } catch (IOException excp) {
+            throw error("Cannot update the path filters: %s", excp.getMessage());
+        }
+        map();
+    }
+
+    /**
+     * Start empty path filter files
+     */
+    private static void create() {
+        writeContents(INDEX_FILE, MAGIC, new byte[] {0, 0, 0, VERSION});
+        writeContents(DATA_FILE, new byte[0]);
+    }
+
+    private void map() {
+        try (FileChannel index = FileChannel.open(INDEX_FILE.toPath());
+             FileChannel filters = FileChannel.open(DATA_FILE.toPath())) {
+            records = index.map(FileChannel.MapMode.READ_ONLY, 0, index.size());
+            data = filters.map(FileChannel.MapMode.READ_ONLY, 0, filters.size());
+        } catch (IOException excp) {
+            throw error("Cannot read the path filters: %s", excp.getMessage());
+        }
+        for (int i = 0; i < MAGIC.length; i += 1) {
+            if (records.capacity() < HEADER_SIZE || records.get(i) != MAGIC[i]) {
+                throw error("Corrupt path filters");
+            }
+        }
+        if (records.getInt(4) != VERSION) {
+            throw error("Unsupported path filter version");
+        }
+        filteredRows = (records.capacity() - HEADER_SIZE) / RECORD_SIZE;
+    }
+
+    /**
+     * A well mixed 64-bit hash of PATH: FNV-1a over its UTF-8 bytes, then
+     * the SplitMix64 finalizer
+     */
+    private static long hash(String path) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : path.getBytes(StandardCharsets.UTF_8)) {
+            h = (h ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+}
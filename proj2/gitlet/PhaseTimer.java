@@ -0,0 +1,51 @@
+package gitlet;
+
+/**
+ * Wall-clock time spent in each phase of a command, printed to stderr
+ * after the command when core.timing=true, i.e.
+ *
+ *   add: scan 12 ms (20000), hash 340 ms (20000), store 95 ms (37), index 41 ms (37)
+ *
+ * The number in parentheses is how many items the phase handled.
+ *
+ *  @author AlexMan
+ */
+class PhaseTimer {
+
+    /** Setting that turns the report on. */
+    static final String TIMING_KEY = "core.timing";
+
+    private final String command;
+    private final boolean enabled;
+    private final StringBuilder report = new StringBuilder();
+    private long last;
+
+    /**
+     * Start timing the first phase of COMMAND
+     */
+    PhaseTimer(String command) {
+        this.command = command;
+        this.enabled = Boolean.parseBoolean(Config.get(TIMING_KEY, "false"));
+        this.last = System.nanoTime();
+    }
+
+    /**
+     * End the current phase and start the next one
+     * @param phase Name of the phase that just ended
+     * @param count How many items it handled
+     */
+    void mark(String phase, int count) {
+        long now = System.nanoTime();
+        if (enabled) {
+            report.append(report.length() == 0 ? command + ": " : ", ");
+            report.append(String.format("%s %d ms (%d)", phase, (now - last) / 1000000, count));
+        }
+        last = now;
+    }
+
+    void print() {
+        if (enabled && report.length() > 0) {
+            System.err.println(report);
+        }
+    }
+}
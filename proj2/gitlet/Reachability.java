@@ -0,0 +1,160 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Finds every object gc must keep: the commits reachable from the refs and
+ * HEAD, their trees and blobs, and the blobs in the index.
+ *
+ * Commits are followed on the commit graph, from row to parent rows,
+ * without reading a commit object.  The reached commits are then marked on
+ * a fork/join pool of gc.workers threads (the number of processors by
+ * default), one task per commit, tree and blob.  An object shared by many
+ * commits, like a directory that never changed, is marked once: whichever
+ * task adds it to the concurrent set first walks it.  A blob stored as a
+ * chunk list keeps its chunks too.
+ *
+ * extend marks what other objects lead to the same way, starting from
+ * their stored type; gc uses it to spare whatever a recent unreachable
+ * object needs, so no object it keeps ever lacks a parent, tree or blob.
+ *
+ * Delta bases are not marked, since gc repacks the kept objects only and
+ * every new delta is made against another kept blob.
+ *
+ *  @author AlexMan
+ */
+class Reachability {
+
+    /** Setting for the number of threads marking objects. */
+    static final String WORKERS_KEY = "gc.workers";
+
+    /**
+     * Mark everything reachable from COMMITS and BLOBS
+     * @param commits IDs of the commits the refs and HEAD point to
+     * @param blobs IDs of the blobs staged in the index
+     * @return The IDs of every reachable object
+     */
+    static Set<String> mark(Collection<String> commits, Collection<String> blobs) {
+        Set<String> reachable = ConcurrentHashMap.newKeySet();
+        // 1. Every ancestor of the tips, on the graph
+        CommitGraph graph = CommitGraph.load();
+        BitSet reached = new BitSet(graph.size());
+        List<Integer> fringe = new ArrayList<>();
+        for (String UID : commits) {
+            fringe.add(graph.lookup(UID));
+        }
+        while (!fringe.isEmpty()) {
+            int row = fringe.remove(fringe.size() - 1);
+            if (row >= 0 && !reached.get(row)) {
+                reached.set(row);
+                fringe.add(graph.firstParent(row));
+                fringe.add(graph.secondParent(row));
+            }
+        }
+        // 2. Their trees, blobs and chunks, and the staged blobs, in parallel
+        List<Mark> roots = new ArrayList<>();
+        for (int row = reached.nextSetBit(0); row >= 0; row = reached.nextSetBit(row + 1)) {
+            String UID = graph.getUID(row);
+            reachable.add(UID);
+            roots.add(new Mark(reachable, UID, Commit.TYPE));
+        }
+        for (String UID : blobs) {
+            if (reachable.add(UID)) {
+                roots.add(new Mark(reachable, UID, Blob.TYPE));
+            }
+        }
+        run(roots);
+        return reachable;
+    }
+
+    /**
+     * Add what OBJECTS lead to to MARKED
+     * @param marked Objects already marked, along with everything they lead to
+     * @param objects IDs of objects of any type
+     * @return A new set of MARKED and everything reachable from OBJECTS
+     */
+    static Set<String> extend(Set<String> marked, Collection<String> objects) {
+        Set<String> reachable = ConcurrentHashMap.newKeySet();
+        reachable.addAll(marked);
+        List<Mark> roots = new ArrayList<>();
+        for (String UID : objects) {
+            if (reachable.add(UID)) {
+                String type = ObjectStore.getStoredType(UID);
+                roots.add(new Mark(reachable, UID, type.equals(Chunker.LIST_TYPE) ? Blob.TYPE : type));
+            }
+        }
+        run(roots);
+        return reachable;
+    }
+
+    private static void run(List<Mark> roots) {
+        int workers = Math.max(1, Config.getInt(WORKERS_KEY, Runtime.getRuntime().availableProcessors()));
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        try {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(roots);
+                }
+            });
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Marks what one object refers to, forking a task for every object it
+     * is the first to reach
+     */
+    private static class Mark extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Set<String> reachable;
+        private final String UID;
+        private final String type;
+
+        Mark(Set<String> reachable, String UID, String type) {
+            this.reachable = reachable;
+            this.UID = UID;
+            this.type = type;
+        }
+
+        @Override
+        protected void compute() {
+            List<Mark> next = new ArrayList<>();
+            if (type.equals(Commit.TYPE)) {
+                // Parents reached on the graph are marked already
+                Commit commit = Commit.fromFile(UID);
+                for (String parent : commit.getParentID()) {
+                    visit(parent, Commit.TYPE, next);
+                }
+                visit(commit.getTreeID(), Tree.TYPE, next);
+            } else if (type.equals(Tree.TYPE)) {
+                for (Tree.Entry entry : Tree.fromFile(UID).getEntries().values()) {
+                    visit(entry.UID, entry.isTree ? Tree.TYPE : Blob.TYPE, next);
+                }
+            } else if (type.equals(Blob.TYPE)) {
+                // A chunked blob keeps the chunks it is made of
+                reachable.addAll(ObjectStore.chunksOf(UID));
+            }
+            invokeAll(next);
+        }
+
+        private void visit(String child, String childType, List<Mark> next) {
+            // The empty tree is implied, and only stored if some commit happened to write it
+            if (child.equals(Tree.EMPTY_ID) && !ObjectStore.contains(child)) {
+                return;
+            }
+            if (reachable.add(child)) {
+                next.add(new Mark(reachable, child, childType));
+            }
+        }
+    }
+}
@@ -1,10 +1,19 @@
 package gitlet;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.NoSuchFileException;
 import java.sql.Array;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -35,6 +44,12 @@ public class Repository {
     public static final File REMOTE_HEADS = join(HEADS_DIR, "remotes");
     public static final File STAGING = join(GITLET_DIR, "index");
 
+    /** Setting for how many seconds an unreachable object survives gc. */
+    static final String PRUNE_EXPIRE_KEY = "gc.pruneExpire";
+    private static final long DEFAULT_PRUNE_EXPIRE = 14 * 24 * 60 * 60;
+    /** Most commits listed when an abbreviated commit ID is ambiguous. */
+    private static final int MAX_CANDIDATES = 10;
+
     /**
      * Create the .gitlet folder for version control, for init command
      */
@@ -43,8 +58,9 @@ public class Repository {
         if(!GITLET_DIR.exists()) {
             // Create ".gitlet" folder, the outmost one
             GITLET_DIR.mkdir();
-            // Create a folder for commit objects and blob objects
+            // Create a folder for commit objects and blob objects, laid out in fan-out directories
             OBJECT_DIR.mkdir();
+            writeContents(ObjectStore.FANOUT_FILE, new byte[0]);
             // Create a folder for head pointers
             HEADS_DIR.mkdir();
             // Inside the heads directory, create
@@ -53,8 +69,7 @@ public class Repository {
             // 2. Remote heads folder
             REMOTE_HEADS.mkdir();
         } else {
-            System.out.println("A Gitlet version-control system already exists in the current directory.");
-            System.exit(0);
+            throw error("A Gitlet version-control system already exists in the current directory.");
         }
     }
 
@@ -87,37 +102,97 @@ public class Repository {
 
     /**
      * Add command
-     * @param filename filename, not a path, i.e f.txt
+     * @param paths Files, or directories whose files are all added, i.e f.txt, src or .
      */
-    public static void add(String filename) {
-        // 1. See if the file exists in the CWD
-        File filePointer = join(CWD, filename);
-        if (filePointer.exists()) {
-            // 1.1 See if the file content is the same as in the current commit.
-            // Get the current commit(active branch)
-            Commit currentCommit = getCommit();
-            // Get the all the blobs managed by the current commit
-            Map<String, String> fileNameToBlob = currentCommit.getPathToBlob();
-            if (fileNameToBlob.containsKey(filename)) {
-                // If the file exists in the recent commit, compare the content
-                String blobID = fileNameToBlob.get(filename);
-                // Read the Blob Object from File System
-                Blob blob = Blob.fromFile(blobID);
-                // Compare the content of the file in the CWD with that in the commit pointed by the active point
-                // If the content are the same, do not add to the staging area and  do not create the blob
-                if (!Arrays.equals(blob.getFileContent(),readContents(filePointer))) {
-                    // If not the same, create a blob and save it under the blobs folder
-                    createBlobAndSave(filePointer); // Save to the blob folder
-                }
+    public static void add(String... paths) {
+        PhaseTimer timer = new PhaseTimer("add");
+        // 1. See if every path exists in the CWD before anything is stored,
+        // listing every file under the ones that are directories
+        Set<String> filenames = new TreeSet<>();
+        for (String path : paths) {
+            String target = WorkTree.normalize(path);
+            File filePointer = target.isEmpty() ? CWD : join(CWD, target);
+            if (filePointer.isDirectory()) {
+                filenames.addAll(WorkTree.walk(target));
+            } else if (filePointer.isFile()) {
+                filenames.add(target);
             } else {
-                // If the file does not exist in the recent commit, create a blob and save it under the blobs folder
-                createBlobAndSave(filePointer);
+                throw error("File does not exist.");
             }
-        } else {
-            System.out.println("File does not exist.");
-            System.exit(0);
         }
+        timer.mark("scan", filenames.size());
+        // 2. Stage them all in memory, then write the index once
+        Stage stage = getStage();
+        int changed = stageFiles(stage, filenames, timer);
+        stage.saveStage();
+        timer.mark("index", changed);
+        timer.print();
+    }
 
+    /**
+     * Stage working files for addition, without saving the stage.  Files
+     * are hashed in parallel, skipping the ones the stat cache vouches for,
+     * then the blobs not stored yet are stored in parallel.
+     * @param stage The stage to update
+     * @param filenames Paths of existing files in the CWD
+     * @param timer Gets a "hash" and a "store" phase
+     * @return How many paths were staged or unstaged
+     */
+    static int stageFiles(Stage stage, Collection<String> filenames, PhaseTimer timer) {
+        // 1. Get the blob ID of every file, only reading the ones whose stat changed
+        Map<String, Track> cache = stage.getPathToTrack();
+        Map<String, Track> fresh = new ConcurrentHashMap<>();
+        Map<String, String> blobIDs = WorkTree.map(filenames, filename -> {
+            File file = join(CWD, filename);
+            Track current = Track.stat(file);
+            Track cached = cache.get(filename);
+            if (cached != null && cached.isClean(current)) {
+                return cached.getBlobID();
+            }
+            String blobID = Blob.hash(file);
+            if (current != null) {
+                current.setBlobID(blobID);
+                fresh.put(filename, current);
+            }
+            return blobID;
+        });
+        timer.mark("hash", fresh.size());
+        // 2. Store the new content, comparing blob IDs with the current commit(active branch)
+        // and the stage instead of the content
+        Map<String, String> committed = getCommit().getPathToBlob();
+        Map<String, String> staged = stage.getPathToBlobIDAddition();
+        List<String> missing = new ArrayList<>();
+        for (Map.Entry<String, String> entry : blobIDs.entrySet()) {
+            String blobID = entry.getValue();
+            if (!blobID.equals(committed.get(entry.getKey())) && !ObjectStore.contains(blobID)) {
+                missing.add(entry.getKey());
+            }
+        }
+        Map<String, String> stored = WorkTree.map(missing, filename -> Blob.store(join(CWD, filename)));
+        for (Map.Entry<String, String> entry : stored.entrySet()) {
+            if (!entry.getValue().equals(blobIDs.get(entry.getKey()))) {
+                // Changed since it was hashed: stage what was stored, but stat it again next time
+                blobIDs.put(entry.getKey(), entry.getValue());
+                fresh.remove(entry.getKey());
+            }
+        }
+        timer.mark("store", stored.size());
+        cache.putAll(fresh);
+        // 3. Files with the committed content are unstaged, the others staged
+        int changed = 0;
+        for (Map.Entry<String, String> entry : blobIDs.entrySet()) {
+            String filename = entry.getKey();
+            String blobID = entry.getValue();
+            boolean wasRemoved = stage.getPathToBlobIDRemoval().remove(filename) != null;
+            if (blobID.equals(committed.get(filename))) {
+                if (staged.remove(filename) != null || wasRemoved) {
+                    changed += 1;
+                }
+            } else if (!blobID.equals(staged.put(filename, blobID)) || wasRemoved) {
+                changed += 1;
+            }
+        }
+        return changed;
     }
 
 
@@ -152,9 +227,10 @@ public class Repository {
             // If after commit, user manually delete it from the directory
             // Delete it from the addition map and add it to the removal map
             Map<String, String> removalStagePathToBlob = stage.getPathToBlobIDRemoval();
-            String fileBlobUID = Blob.fromFile(commit.getPathToBlob().get(filename)).getUID();
+            String fileBlobUID = commit.getPathToBlob().get(filename);
             addingStagePathToBlob.remove(filename);
             removalStagePathToBlob.put(filename, fileBlobUID);
+            stage.getPathToTrack().remove(filename);
             cwdFilePointer.delete();
         }
         if (!staged && !tracked) {
@@ -190,93 +266,161 @@ public class Repository {
             System.out.println("No changes added to the commit.");
             return;
         }
-        Map<String, String> fileMappingToBeModified = newCommit.getPathToBlob();
+        Map<String, String> changes = new HashMap<>();
         // 4.1 Add all the file-mapping that are in the addingStage(files that are staged for commit)
-        fileMappingToBeModified.putAll(currentStage.getPathToBlobIDAddition());
+        changes.putAll(currentStage.getPathToBlobIDAddition());
         // 4.2 Untrack all the file-mapping that are in the removalStage
         for(Map.Entry<String, String> entry: currentStage.getPathToBlobIDRemoval().entrySet()){
-            fileMappingToBeModified.remove(entry.getKey());
+            changes.put(entry.getKey(), null);
         }
-        // 4.3 Clear the staging area and save it back to the file system
-        currentStage.clearFileMapping();
-        currentStage.saveStage();
-        // 4.4 Set the modified fileMapping to the newCommit
-        newCommit.setPathToBlob(fileMappingToBeModified); // Not necessary, pass by reference
+        // 4.3 Write the trees of the changed directories, the others are shared with the parent
+        newCommit.applyChanges(changes);
         // 5. Set the UID of the new commit
         newCommit.setUID(newCommit.generateID());
         // 6. Serialize and save the commit object to the disk
         newCommit.saveCommit();
-        // 7. Move the head pointer of the current branch and HEAD
+        // 7. Move the head pointer of the current branch and HEAD; the commit is made
+        // once this rename lands, everything it points to being written already
         String currentBranch = parseCurrentBranchHEAD(readContentsAsString(HEAD));
         File masterPath = join(LOCAL_HEADS, currentBranch);
-        writeContents(masterPath, newCommit.getUID());
+        LockFile.write(masterPath, newCommit.getUID());
+        // 8. Only then clear the staging area, so a crash before the ref moves loses nothing staged
+        currentStage.clearFileMapping();
+        currentStage.saveStage();
     }
 
 
     /**
      * Print out all the commit information(in backward ordering)
+     * Only the commit graph is read, commit objects are never deserialized.
+     * Commits are written out as they are visited, so the newest show up at
+     * once and the walk stops as soon as a limit is reached.
+     * @param maxCount Most commits to print, -1 for no limit
+     * @param since Stop at the first commit older than this, in seconds since the epoch
+     * @param path Only print the commits that changed this file or directory
+     *             (checked with the path filters), null for all of them
      */
-    public static void log() {
-        StringBuilder sb = new StringBuilder();
-        Commit curr = getCommit();
-        while (curr.getParentID().size() != 0) {
-            sb.append("==="+"\r\n");
-            sb.append(curr);
-            sb.append("\r\n\r\n");
-            curr = getCommit(curr.getParentID().get(0));
+    public static void log(int maxCount, long since, String path) {
+        String target = path == null ? null : WorkTree.normalize(path);
+        CommitGraph graph = CommitGraph.load();
+        PathFilter filter = target == null || target.isEmpty() ? null : PathFilter.load(graph);
+        Writer out = openOutput();
+        try {
+            int printed = 0;
+            for (int curr = graph.lookup(getCommitID()); curr >= 0 && printed != maxCount;
+                 curr = graph.firstParent(curr)) {
+                if (graph.time(curr) < since) {
+                    break;
+                }
+                if (target != null && !changed(graph, filter, curr, target)) {
+                    continue;
+                }
+                if (printed > 0) {
+                    out.write("\r\n");
+                }
+                out.write("===" + "\r\n");
+                out.write(graph.describe(curr));
+                out.write("\r\n");
+                printed += 1;
+            }
+            out.write(System.lineSeparator());
+            out.flush();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
         }
-        sb.append("==="+"\r\n");
-        sb.append(curr);
-        sb.append("\r\n");
-        System.out.println(sb);
+    }
+
+    /**
+     * Return whether the commit at ROW changed PATH.  Commits whose path
+     * filter rules PATH out are answered without being read; the others are
+     * checked against their trees, since a filter may match a path that
+     * didn't change.
+     * @param filter The path filters of GRAPH, null when PATH is the whole tree
+     */
+    private static boolean changed(CommitGraph graph, PathFilter filter, int row, String path) {
+        if (filter != null && !filter.mayHaveChanged(row, path)) {
+            return false;
+        }
+        String now = entryAt(graph, row, path);
+        String before = entryAt(graph, graph.firstParent(row), path);
+        return now == null ? before != null : !now.equals(before);
+    }
+
+    /**
+     * The blob or tree at PATH in the commit at ROW, the root tree if PATH
+     * is empty
+     * @param row A commit graph row, -1 for the (empty) parent of the initial commit
+     */
+    private static String entryAt(CommitGraph graph, int row, String path) {
+        if (row < 0) {
+            return path.isEmpty() ? Tree.EMPTY_ID : null;
+        }
+        String treeID = getCommit(graph.getUID(row)).getTreeID();
+        return path.isEmpty() ? treeID : Tree.lookupEntry(treeID, path);
     }
 
 
     /**
      * Print out all the commit information(in arbitrary ordering)
+     * Every commit has a row in the commit graph, so only the graph is read,
+     * no object is opened.
      */
     public static void globalLog() {
-        StringBuilder sb = new StringBuilder();
-        List<String> filenameList = plainFilenamesIn(OBJECT_DIR);
-        if (filenameList == null || filenameList.size() == 0) {
-            throw new RuntimeException("Internal Error, shouldn't reach here!");
-        }
-        Commit curr;
-        for (String filename: filenameList) {
-            // Circumvent those non-commit object
-            String type = getGitObjectType(filename);
-            if (!type.equals("commit")) {
-                continue;
+        CommitGraph graph = CommitGraph.load();
+        Writer out = openOutput();
+        try {
+            for (int row = 0; row < graph.size(); row += 1) {
+                out.write("===" + "\r\n");
+                out.write(graph.describe(row));
+                out.write("\r\n\r\n");
             }
-            curr = Commit.fromFile(filename);
-            sb.append("==="+"\r\n");
-            sb.append(curr);
-            sb.append("\r\n\r\n");
+            out.flush();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
         }
-        System.out.print(sb);
+    }
+
+    /**
+     * A buffered writer on standard output, for commands printing a line per
+     * commit.  Flushed rather than closed, so standard output stays open.
+     */
+    private static Writer openOutput() {
+        return new BufferedWriter(new OutputStreamWriter(System.out), ObjectStore.BUFFER_SIZE);
     }
 
 
     /**
      * Find commit by its message
+     * The commits are looked up in the message index, objects are never read.
      * @param message The commit message specified by the users
      */
     public static void find(String message) {
+        CommitGraph graph = CommitGraph.load();
+        printFound(graph, MessageIndex.load(graph).find(message));
+    }
+
+    /**
+     * Find the commits whose message starts with PREFIX, for find --prefix
+     */
+    public static void findPrefix(String prefix) {
+        CommitGraph graph = CommitGraph.load();
+        printFound(graph, MessageIndex.load(graph).findPrefix(prefix));
+    }
+
+    /**
+     * Find the commits whose message contains TEXT, for find --contains
+     */
+    public static void findContaining(String text) {
+        CommitGraph graph = CommitGraph.load();
+        printFound(graph, MessageIndex.load(graph).findContaining(text));
+    }
+
+    private static void printFound(CommitGraph graph, List<Integer> rows) {
         StringBuilder sb = new StringBuilder();
-        Commit curr;
-        for (String filename: plainFilenamesIn(OBJECT_DIR)) {
-            // Circumvent those non-commit object
-            try {
-                curr = getCommit(filename);
-                curr.getType();
-                if (curr.getMessage().equals(message)) {
-                    sb.append("==="+"\r\n");
-                    sb.append(curr);
-                    sb.append("\r\n");
-                }
-            } catch(Exception e) {
-                continue;
-            }
+        for (int row : rows) {
+            sb.append("==="+"\r\n");
+            sb.append(graph.describe(row));
+            sb.append("\r\n");
         }
         System.out.println(sb);
     }
@@ -299,26 +443,25 @@ public class Repository {
         sb.append("\r\n");
         sb.append("=== Staged Files ==="+"\r\n");
         Stage stage = Stage.fromFile();
-        Map<String,String> stagedAddition = stage.getPathToBlobIDAddition();
-        for (String filename: stagedAddition.keySet()) {
+        for (String filename: new TreeSet<>(stage.getPathToBlobIDAddition().keySet())) {
             sb.append(filename + "\r\n");
         }
         sb.append("\r\n");
         sb.append("=== Removed Files ==="+"\r\n");
-        Map<String,String> stagedRemoval = stage.getPathToBlobIDRemoval();
-        for (String filename: stagedRemoval.keySet()) {
+        for (String filename: new TreeSet<>(stage.getPathToBlobIDRemoval().keySet())) {
             sb.append(filename + "\r\n");
         }
+        List<Map<String, String>> dynamics = getFileDynamics(stage);
         sb.append("\r\n");
         sb.append("=== Modifications Not Staged For Commit ==="+"\r\n");
-//        for (String file: modificationsNotStaged) {
-//            sb.append(file + "\r\n");
-//        }
+        for (Map.Entry<String, String> file: dynamics.get(0).entrySet()) {
+            sb.append(file.getKey() + " (" + file.getValue() + ")" + "\r\n");
+        }
         sb.append("\r\n");
         sb.append("=== Untracked Files ==="+"\r\n");
-//        for (String file: untracked) {
-//            sb.append(file + "\r\n");
-//        }
+        for (String file: dynamics.get(1).keySet()) {
+            sb.append(file + "\r\n");
+        }
         System.out.println(sb);
 //        return sb.toString();
     }
@@ -334,8 +477,7 @@ public class Repository {
         Commit headCommit = getCommit();
         String blobID = headCommit.getBlobFromFileName(filename);
         if (blobID != null) {
-            Blob blob = Blob.fromFile(blobID);
-            writeContents(join(CWD, filename), blob.getFileContent());
+            Blob.writeTo(blobID, join(CWD, filename));
         } else {
             System.out.println("File does not exist in that commit.");
         }
@@ -347,15 +489,10 @@ public class Repository {
      * @param filename
      */
     public static void checkoutFile(String commitID, String filename) {
-        try {
-            Commit commitObj = getCommit(commitID);
-            String blobID = commitObj.getBlobFromFileName(filename);
-            if (blobID != null) {
-                Blob blob = Blob.fromFile(blobID);
-                writeContents(join(CWD, filename), blob.getFileContent());
-            }
-        } catch (Exception e) {
-            System.out.println("No commit with that id exists.");
+        Commit commitObj = getCommit(resolveCommitID(commitID));
+        String blobID = commitObj.getBlobFromFileName(filename);
+        if (blobID != null) {
+            Blob.writeTo(blobID, join(CWD, filename));
         }
     }
 
@@ -415,7 +552,7 @@ public class Repository {
 //        currentStage.saveStage();
 
         // Write the new branch information to HEAD(write refs/heads/branch name)
-        writeContents(HEAD, "ref: refs/heads/" + branchName);
+        LockFile.write(HEAD, "ref: refs/heads/" + branchName);
     }
 
     /**
@@ -425,35 +562,27 @@ public class Repository {
     public static void branch(String name) {
         for(String filename: plainFilenamesIn(LOCAL_HEADS)) {
             if ((name).equals(filename)) {
-                System.out.println("A branch with that name already exists.");
-                System.exit(0);
+                throw error("A branch with that name already exists.");
             }
         }
         String currentCommitID = getCommit().getUID();
         File branchPath = join(LOCAL_HEADS, name);
-        try {
-            branchPath.createNewFile();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        writeContents(branchPath, currentCommitID);
+        LockFile.write(branchPath, currentCommitID);
     }
 
 
     public static void rmBranch(String branchName) {
         String currentBranchName = parseCurrentBranchHEAD(readContentsAsString(HEAD));
         if (currentBranchName.equals(branchName)) {
-            System.out.println("Cannot remove the current branch.");
-            System.exit(0);
+            throw error("Cannot remove the current branch.");
         }
         for (String nameBranch: plainFilenamesIn(LOCAL_HEADS)) {
             if (nameBranch.equals(branchName)) {
                 join(LOCAL_HEADS, nameBranch).delete();
-                System.exit(0);
+                return;
             }
         }
-        System.out.println("A branch with that name does not exist.");
-        System.exit(0);
+        throw error("A branch with that name does not exist.");
     }
 
 
@@ -462,16 +591,214 @@ public class Repository {
      * @param commitID
      */
     public static void reset(String commitID) {
-        if (!checkCommit(commitID)) {
-            System.out.println("No commit with that id exists.");
-            System.exit(0);
-        }
-        checkCommit(commitID);
+        String fullID = resolveCommitID(commitID);
+        // 1. Check out all the files of that commit, this also clears the staging area
+        checkoutCommit(fullID);
+        // 2. Move the current branch (or a detached HEAD) to the commit
+        moveHEAD(fullID);
     }
 
 
+    /**
+     * Merge the given branch into the current one.  Files changed on one
+     * side only take that side; files both sides changed are merged line by
+     * line, and only the hunks both sides changed differently end up between
+     * conflict markers.
+     * @param branchName The branch to merge in
+     */
     public static void merge(String branchName) {
+        Stage stage = getStage();
+        // Failure Cases: uncommitted changes, no such branch, the current branch
+        if (!stage.getPathToBlobIDAddition().isEmpty() || !stage.getPathToBlobIDRemoval().isEmpty()) {
+            throw error("You have uncommitted changes.");
+        }
+        File branchFilePointer = join(LOCAL_HEADS, branchName);
+        if (!branchFilePointer.exists()) {
+            throw error("A branch with that name does not exist.");
+        }
+        String currentBranchName = parseCurrentBranchHEAD(readContentsAsString(HEAD));
+        if (branchName.equals(currentBranchName)) {
+            throw error("Cannot merge a branch with itself.");
+        }
+        // 1. Find the split point, handling the branches that are ancestors of each other
+        String currentID = getCommitID();
+        String givenID = readContentsAsString(branchFilePointer);
+        CommitGraph graph = CommitGraph.load();
+        String splitID = graph.getUID(graph.mergeBase(graph.lookup(currentID), graph.lookup(givenID)));
+        if (splitID.equals(givenID)) {
+            throw error("Given branch is an ancestor of the current branch.");
+        }
+        if (splitID.equals(currentID)) {
+            checkoutCommit(givenID);
+            moveHEAD(givenID);
+            System.out.println("Current branch fast-forwarded.");
+            return;
+        }
+        // 2. Take the changes of the given branch since the split point, merging the
+        // files the current branch changed as well
+        Commit currentCommit = getCommit(currentID);
+        Commit splitCommit = getCommit(splitID);
+        Map<String, String> ours = Tree.diff(splitCommit.getTreeID(), currentCommit.getTreeID());
+        Map<String, String> theirs = Tree.diff(splitCommit.getTreeID(), getCommit(givenID).getTreeID());
+        Map<String, String> changes = new HashMap<>();
+        Map<String, byte[]> merged = new TreeMap<>();
+        boolean conflict = false;
+        for (Map.Entry<String, String> change : theirs.entrySet()) {
+            String filename = change.getKey();
+            String theirBlobID = change.getValue();
+            if (!ours.containsKey(filename)) {
+                changes.put(filename, theirBlobID);
+            } else if (!Objects.equals(ours.get(filename), theirBlobID)) {
+                Diff.MergeResult result = Diff.merge(
+                        blobLines(Tree.lookup(splitCommit.getTreeID(), filename)),
+                        blobLines(ours.get(filename)), blobLines(theirBlobID));
+                conflict |= result.conflict;
+                merged.put(filename, result.content);
+            }
+        }
+        // Failure Case: untracked file in the way, checked before anything is written
+        for (String filename : union(changes.keySet(), merged.keySet())) {
+            boolean inCurrent = Tree.lookup(currentCommit.getTreeID(), filename) != null;
+            boolean written = changes.get(filename) != null || merged.containsKey(filename);
+            if (written && !inCurrent && (join(CWD, filename).exists() || isBlockedByFile(filename, changes))) {
+                throw error("There is an untracked file in the way; delete it, or add and commit it first.");
+            }
+        }
+        // 3. Update the working directory, storing the merged files as new blobs
+        Checkout.apply(changes, stage);
+        for (Map.Entry<String, byte[]> file : merged.entrySet()) {
+            File filePointer = join(CWD, file.getKey());
+            filePointer.getParentFile().mkdirs();
+            writeContents(filePointer, (Object) file.getValue());
+            String blobID = Blob.store(filePointer);
+            changes.put(file.getKey(), blobID);
+            Track track = Track.stat(filePointer);
+            if (track != null) {
+                track.setBlobID(blobID);
+                stage.getPathToTrack().put(file.getKey(), track);
+            }
+        }
+        // 4. Commit the result with both branch heads as parents
+        List<String> parentIDs = new ArrayList<>();
+        parentIDs.add(currentID);
+        parentIDs.add(givenID);
+        Commit mergeCommit = new Commit("Merged " + branchName + " into " + currentBranchName + ".", parentIDs);
+        mergeCommit.copyFromCommit(currentCommit);
+        mergeCommit.applyChanges(changes);
+        mergeCommit.setUID(mergeCommit.generateID());
+        mergeCommit.saveCommit();
+        moveHEAD(mergeCommit.getUID());
+        stage.clearFileMapping();
+        stage.saveStage();
+        if (conflict) {
+            System.out.println("Encountered a merge conflict.");
+        }
+    }
+
+    /**
+     * Print the line diff between two snapshots as a unified diff: two
+     * commits, a commit and the working directory, or the current commit
+     * and the working directory
+     * @param commitIDs None, one or two (possibly abbreviated) commit IDs
+     */
+    public static void diff(String... commitIDs) {
+        // 1. The blob of every path that differs on each side
+        Map<String, String> before = new TreeMap<>();
+        Map<String, String> after = new TreeMap<>();
+        String fromTreeID = commitIDs.length > 0
+                ? getCommit(resolveCommitID(commitIDs[0])).getTreeID() : getCommit().getTreeID();
+        if (commitIDs.length == 2) {
+            String toTreeID = getCommit(resolveCommitID(commitIDs[1])).getTreeID();
+            for (Map.Entry<String, String> change : Tree.diff(fromTreeID, toTreeID).entrySet()) {
+                before.put(change.getKey(), Tree.lookup(fromTreeID, change.getKey()));
+                after.put(change.getKey(), change.getValue());
+            }
+        } else {
+            // Compared with the tracked and staged files of the working directory,
+            // hashing only the files the stat cache can't vouch for
+            Stage stage = getStage();
+            Map<String, String> committed = Tree.flatten(fromTreeID);
+            for (String filename : union(committed.keySet(), stage.getPathToBlobIDAddition().keySet())) {
+                String workingBlobID = workingBlobID(filename, stage);
+                if (!Objects.equals(committed.get(filename), workingBlobID)) {
+                    before.put(filename, committed.get(filename));
+                    after.put(filename, workingBlobID);
+                }
+            }
+        }
+        // 2. Print a unified diff of every changed path
+        boolean working = commitIDs.length < 2;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String filename : union(before.keySet(), after.keySet())) {
+            byte[] old = before.get(filename) == null ? new byte[0] : Blob.fromFile(before.get(filename)).getFileContent();
+            byte[] now = after.get(filename) == null ? new byte[0]
+                    : working ? readContents(join(CWD, filename)) : Blob.fromFile(after.get(filename)).getFileContent();
+            writeUTF8(out, "diff --git a/" + filename + " b/" + filename + "\n");
+            if (Diff.isBinary(old) || Diff.isBinary(now)) {
+                writeUTF8(out, "Binary files a/" + filename + " and b/" + filename + " differ\n");
+                continue;
+            }
+            writeUTF8(out, "--- " + (before.get(filename) == null ? "/dev/null" : "a/" + filename) + "\n");
+            writeUTF8(out, "+++ " + (after.get(filename) == null ? "/dev/null" : "b/" + filename) + "\n");
+            Diff.Lines oldLines = new Diff.Lines(old);
+            Diff.Lines newLines = new Diff.Lines(now);
+            Diff.writeHunks(out, oldLines, newLines, Diff.diff(oldLines, newLines));
+        }
+        System.out.write(out.toByteArray(), 0, out.size());
+        System.out.flush();
+    }
+
 
+    /**
+     * Remove the objects nothing leads to any more and pack the rest, so
+     * that the object directory holds a handful of pack files instead of
+     * one file per object.  Unreachable objects younger than gc.pruneExpire
+     * seconds (two weeks by default) are kept, so a commit dropped by reset
+     * can still be checked out by its ID for a while.
+     */
+    public static void gc() {
+        PhaseTimer timer = new PhaseTimer("gc");
+        // 1. Mark everything the branches, HEAD and the index lead to
+        Set<String> tips = new HashSet<>();
+        tips.add(getCommitID());
+        for (String branch : plainFilenamesIn(LOCAL_HEADS)) {
+            tips.add(readContentsAsString(join(LOCAL_HEADS, branch)));
+        }
+        Stage stage = Stage.fromFile();
+        Set<String> staged = new HashSet<>(stage.getPathToBlobIDAddition().values());
+        Set<String> reachable = Reachability.mark(tips, staged);
+        // 2. Spare the recent unreachable objects, and whatever they lead to
+        long expiry = System.currentTimeMillis() - Config.getLong(PRUNE_EXPIRE_KEY, DEFAULT_PRUNE_EXPIRE) * 1000;
+        Set<String> recent = ObjectStore.objectsSince(expiry);
+        recent.removeAll(reachable);
+        Set<String> spared = Reachability.extend(reachable, recent);
+        timer.mark("mark", spared.size());
+        // 3. Pack the reachable ones, and sweep the rest
+        int removed = 0;
+        long reclaimed = 0;
+        for (String UID : ObjectStore.objectIDs()) {
+            if (!spared.contains(UID)) {
+                removed += 1;
+                reclaimed += ObjectStore.storedLength(UID);
+            }
+        }
+        int packed = ObjectStore.repack(reachable, spared);
+        timer.mark("sweep", packed + removed);
+        // 4. Rebuild the indexes of graph rows if commits are gone
+        CommitGraph graph = CommitGraph.load();
+        for (int row = 0; row < graph.size(); row += 1) {
+            if (!ObjectStore.contains(graph.getUID(row))) {
+                CommitGraph.GRAPH_FILE.delete();
+                graph = CommitGraph.load();
+                graph.getIndex();
+                MessageIndex.load(graph);
+                PathFilter.load(graph);
+                break;
+            }
+        }
+        timer.mark("index", graph.size());
+        timer.print();
+        System.out.printf("Removed %d unreachable objects, reclaiming %d bytes.%n", removed, reclaimed);
     }
 
 
@@ -492,75 +819,267 @@ public class Repository {
     public static void checkoutCommit(String commitID) {
         Commit currentCommit = getCommit();
         Commit targetCommit = getCommit(commitID);
+        Stage currentStage = Stage.fromFile();
 
-        Map<String, String> currentFileNameToBlobIdMapping = currentCommit.getPathToBlob();
-        Map<String, String> targetFileNameToBlobIdMappping = targetCommit.getPathToBlob();
-
-        for (String filename: targetFileNameToBlobIdMappping.keySet()) {
-            boolean inCurrent = currentFileNameToBlobIdMapping.containsKey(filename);
-            boolean inCWD = join(CWD, filename).exists();
+        // 1. Only the paths whose blob differs between the two commits are touched,
+        // comparing the trees rather than every file
+        Map<String, String> changes = Tree.diff(currentCommit.getTreeID(), targetCommit.getTreeID());
 
-            Blob branchBlob = Blob.fromFile(targetFileNameToBlobIdMappping.get(filename));
-            // Failure Case 3: Filename is in new branch, not in current branch but in CWD
-            if (!inCurrent && inCWD) {
-                System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
-                System.exit(0);
+        // 2. Files staged for addition go away with the staging area, unless the target has them
+        for (String filename: currentStage.getPathToBlobIDAddition().keySet()) {
+            if (!changes.containsKey(filename) && Tree.lookup(targetCommit.getTreeID(), filename) == null) {
+                changes.put(filename, null);
             }
-            // Overwrite the file in the CWD
-            writeContents(join(CWD, filename), branchBlob.getFileBytes());
         }
 
-        // Delete all the files tracked by current branch but not tracked in target branch
-        for (String filename: plainFilenamesIn(CWD)) {
-            boolean inBranch = targetFileNameToBlobIdMappping.containsKey(filename);
-            if (!inBranch) {
-                join(CWD, filename).delete();
+        // Failure Case 3: Filename is in new branch, not in current branch but in CWD
+        // Checked for every file before anything is written
+        for (Map.Entry<String, String> change: changes.entrySet()) {
+            String filename = change.getKey();
+            boolean inCurrent = Tree.lookup(currentCommit.getTreeID(), filename) != null;
+            if (change.getValue() != null && !inCurrent
+                    && (join(CWD, filename).exists() || isBlockedByFile(filename, changes))) {
+                throw error("There is an untracked file in the way; delete it, or add and commit it first.");
             }
         }
 
+        // 3. Overwrite the changed files and delete the removed ones, in parallel
+        Checkout.apply(changes, currentStage);
+
         // Clear the staging area.
-        Stage currentStage = Stage.fromFile();
         currentStage.clearFileMapping();
         currentStage.saveStage();
     }
 
     /**
-     * Get the information needed for status command to print out modifications/untrackedness
-     * @param currentBranchName Current branch name
-     * @return
+     * Return whether a directory on the way to FILENAME is a file in the
+     * CWD that the checkout doesn't remove
+     * @param filename i.e. "src/Main.java"
+     * @param changes The changes being checked out
+     */
+    private static boolean isBlockedByFile(String filename, Map<String, String> changes) {
+        for (int slash = filename.indexOf('/'); slash >= 0; slash = filename.indexOf('/', slash + 1)) {
+            String parent = filename.substring(0, slash);
+            if (join(CWD, parent).isFile() && !(changes.containsKey(parent) && changes.get(parent) == null)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Move the current branch to a commit, or HEAD itself when it's detached
+     * @param commitID Full SHA1 ID of the commit
+     */
+    private static void moveHEAD(String commitID) {
+        String content = readContentsAsString(HEAD);
+        if (parseHEADDetached(content)) {
+            LockFile.write(HEAD, commitID);
+        } else {
+            LockFile.write(join(LOCAL_HEADS, parseCurrentBranchHEAD(content)), commitID);
+        }
+    }
+
+    /**
+     * The lines of a blob, no lines for a null ID (a file that isn't there)
      */
-    private static List<Map<String, String>> getFileDynamics(String currentBranchName) {
+    private static Diff.Lines blobLines(String blobID) {
+        return new Diff.Lines(blobID == null ? new byte[0] : Blob.fromFile(blobID).getFileContent());
+    }
+
+    /**
+     * The blob ID of a working file, read from the stat cache when the file
+     * didn't change since it was last hashed
+     * @return The blob ID, null if the file doesn't exist
+     */
+    private static String workingBlobID(String filename, Stage stage) {
+        File filePointer = join(CWD, filename);
+        Track current = Track.stat(filePointer);
+        if (current == null || !filePointer.isFile()) {
+            return null;
+        }
+        Track cached = stage.getPathToTrack().get(filename);
+        return cached != null && cached.isClean(current) ? cached.getBlobID() : Blob.hash(filePointer);
+    }
+
+    /**
+     * The paths in A or B, sorted
+     */
+    private static SortedSet<String> union(Set<String> a, Set<String> b) {
+        SortedSet<String> result = new TreeSet<>(a);
+        result.addAll(b);
+        return result;
+    }
+
+    private static void writeUTF8(ByteArrayOutputStream out, String text) {
+        out.writeBytes(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Compare the working directory with the index and the current commit in
+     * one merged pass over their sorted paths.  Only the working files that
+     * are tracked or staged need a blob ID; the stat cache gives it for the
+     * ones whose stat didn't change, the others are hashed in parallel.
+     * Fresh stats are saved back to the index, so they aren't hashed again.
+     * @param stage The current staging area
+     * @return The files modified but not staged (path -> "modified" or
+     *         "deleted"), then the untracked files (path -> ""), both sorted
+     */
+    private static List<Map<String, String>> getFileDynamics(Stage stage) {
         List<Map<String, String>> res = new ArrayList<>();
-        Map<String, String> modified = new HashMap<>();
-        Map<String, String> untracked = new HashMap<>();
+        Map<String, String> modified = new LinkedHashMap<>();
+        Map<String, String> untracked = new LinkedHashMap<>();
         res.add(modified);
         res.add(untracked);
+        PhaseTimer timer = new PhaseTimer("status");
+        Map<String, String> committed = getCommit().getPathToBlob();
+        Map<String, String> staged = stage.getPathToBlobIDAddition();
+        Map<String, String> removed = stage.getPathToBlobIDRemoval();
+        timer.mark("index", committed.size() + stage.getPathToTrack().size());
+        // 1. Stat the working files, and take the blob IDs of the known ones the stat cache vouches for
+        Map<String, Track> working = WorkTree.scan("");
+        Map<String, Track> cache = stage.getPathToTrack();
+        Map<String, String> blobIDs = new HashMap<>();
+        List<String> suspects = new ArrayList<>();
+        for (Map.Entry<String, Track> file : working.entrySet()) {
+            String filename = file.getKey();
+            if (committed.containsKey(filename) || staged.containsKey(filename)) {
+                Track cached = cache.get(filename);
+                if (cached != null && cached.isClean(file.getValue())) {
+                    blobIDs.put(filename, cached.getBlobID());
+                } else {
+                    suspects.add(filename);
+                }
+            }
+        }
+        timer.mark("scan", working.size());
+        // 2. Hash the others in parallel
+        Map<String, String> hashed = WorkTree.map(suspects, filename -> Blob.hash(join(CWD, filename)));
+        blobIDs.putAll(hashed);
+        timer.mark("hash", hashed.size());
+        // 3. Walk the sorted paths of the working directory, the commit and the stage together
+        String[] work = sortedKeys(working);
+        String[] head = sortedKeys(committed);
+        String[] added = sortedKeys(staged);
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < work.length || j < head.length || k < added.length) {
+            String filename = min(i < work.length ? work[i] : null, j < head.length ? head[j] : null,
+                    k < added.length ? added[k] : null);
+            boolean inWorking = i < work.length && work[i].equals(filename);
+            boolean inCommit = j < head.length && head[j].equals(filename);
+            boolean isStaged = k < added.length && added[k].equals(filename);
+            i += inWorking ? 1 : 0;
+            j += inCommit ? 1 : 0;
+            k += isStaged ? 1 : 0;
+            String workingID = blobIDs.get(filename);
+            if (isStaged) {
+                // Staged for addition, then deleted or changed again
+                if (!inWorking) {
+                    modified.put(filename, "deleted");
+                } else if (!staged.get(filename).equals(workingID)) {
+                    modified.put(filename, "modified");
+                }
+            } else if (inCommit && !removed.containsKey(filename)) {
+                // Tracked and not staged at all
+                if (!inWorking) {
+                    modified.put(filename, "deleted");
+                } else if (!committed.get(filename).equals(workingID)) {
+                    modified.put(filename, "modified");
+                }
+            } else if (inWorking) {
+                // Neither staged nor tracked, or re-created after being staged for removal
+                untracked.put(filename, "");
+            }
+        }
+        timer.mark("compare", work.length + head.length + added.length);
+        // 4. Keep what was learned about the files that were hashed
+        if (!hashed.isEmpty()) {
+            for (Map.Entry<String, String> file : hashed.entrySet()) {
+                Track track = working.get(file.getKey());
+                track.setBlobID(file.getValue());
+                cache.put(file.getKey(), track);
+            }
+            stage.saveStage();
+        }
+        timer.print();
         return res;
     }
 
+    private static String[] sortedKeys(Map<String, ?> map) {
+        String[] keys = map.keySet().toArray(new String[0]);
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    /**
+     * The smallest of the non-null strings in NAMES
+     */
+    private static String min(String... names) {
+        String result = null;
+        for (String name : names) {
+            if (name != null && (result == null || name.compareTo(result) < 0)) {
+                result = name;
+            }
+        }
+        return result;
+    }
+
 
 
+    /**
+     * Stop on a repository made by the first gitlet, whose Java-serialized
+     * index and objects this version can't read
+     */
+    static void checkFormat() {
+        try (InputStream in = new FileInputStream(STAGING)) {
+            byte[] start = in.readNBytes(2);
+            int magic = start.length == 2 ? (start[0] & 0xff) << 8 | (start[1] & 0xff) : -1;
+            if (magic == (ObjectStreamConstants.STREAM_MAGIC & 0xffff)) {
+                throw error("This repository was made by an older gitlet that stored Java-serialized objects, "
+                        + "which can't be read any more. Make it again with init.");
+            }
+        } catch (IOException excp) {
+            // No index yet, nothing to check
+        }
+    }
+
     /**
      * Get the commit that's being pointed by HEAD
      * @return a commit object currently being pointed at
      */
     private static Commit getCommit() {
-        String content = readContentsAsString(HEAD);
-        return Commit.fromFile(parseHEAD(content));
+        return Commit.fromFile(getCommitID());
     }
 
     /**
-     * Check whether a commit object with commitID exists
-     * @param commitID The commitID that pinponts a unique commit object
-     * @return Whether that commit has been created
+     * Get the ID of the commit that's being pointed by HEAD
+     * @return SHA1 ID of the current commit
      */
-    private static boolean checkCommit(String commitID) {
-        for (String commitSHA1: plainFilenamesIn(OBJECT_DIR)) {
-            if (commitSHA1.equals(commitID)) {
-                return true;
-            }
+    private static String getCommitID() {
+        return parseHEAD(readContentsAsString(HEAD));
+    }
+
+    /**
+     * Resolve a full or abbreviated commit ID, looking it up in the sorted
+     * commit index.  Exits if no commit or more than one commit matches.
+     * @param commitID A unique prefix of the ID of a commit
+     * @return The full SHA1 ID of the commit
+     */
+    private static String resolveCommitID(String commitID) {
+        String prefix = commitID.toLowerCase(Locale.ROOT);
+        List<String> matches = new ArrayList<>();
+        if (prefix.matches("[0-9a-f]{1," + UID_LENGTH + "}")) {
+            matches = CommitGraph.load().getIndex().withPrefix(prefix, MAX_CANDIDATES);
         }
-        return false;
+        if (matches.isEmpty()) {
+            throw error("No commit with that id exists.");
+        } else if (matches.size() > 1) {
+            throw error("Commit id %s is ambiguous, it could be:%n%s", commitID,
+                    String.join(System.lineSeparator(), matches));
+        }
+        return matches.get(0);
     }
 
 
@@ -614,12 +1133,6 @@ public class Repository {
     }
 
 
-    private static String getGitObjectType(String UID) {
-        GitObject gitObject = GitObject.readGitObject(UID);
-        String type = gitObject.getType();
-        return type;
-    }
-
     /**
      * Overloaded
      * @param UID
@@ -637,23 +1150,4 @@ public class Repository {
     private static Stage getStage() {
         return Stage.fromFile();
     }
-
-
-    /**
-     * This function creates a blob at the specified filepath
-     * @param filePointer filepath
-     */
-    private static void createBlobAndSave(File filePointer) {
-
-        Blob newBlob = new Blob(filePointer);
-        newBlob.saveBlob();
-        addStaging(filePointer, newBlob.getUID());
-    }
-
-
-    private static void addStaging(File filePointer, String BID) {
-        Stage stage = getStage();
-        stage.getPathToBlobIDAddition().put(filePointer.getName(), BID);
-        stage.saveStage();
-    }
 }
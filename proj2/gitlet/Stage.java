@@ -1,29 +1,30 @@
 package gitlet;
 
 import java.io.File;
-import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
 
 import static gitlet.Utils.join;
 
-public class Stage implements Serializable {
+public class Stage implements Dumpable {
 
     private static final File savePath = join(Repository.GITLET_DIR, "index");
 
     private Map<String, String> pathToBlobIDAddition = new HashMap<>();
     private Map<String, String> pathToBlobIDRemoval = new HashMap<>();
+    // Stat cache of the working files, survives commits
+    private Map<String, Track> pathToTrack = new HashMap<>();
 
     public Map<String, String> getPathToBlobIDAddition() {
         return pathToBlobIDAddition;
     }
 
     public void saveStage() {
-        Utils.writeObject(Utils.join(savePath), this);
+        LockFile.write(savePath, Codec.encodeStage(this));
     }
 
     public static Stage fromFile() {
-        return Utils.readObject(Utils.join(savePath), Stage.class);
+        return Codec.decodeStage(Utils.readContents(savePath));
     }
 
     public void setPathToBlobIDAddition(Map<String, String> pathToBlobIDAddition) {
@@ -38,6 +39,10 @@ public class Stage implements Serializable {
         this.pathToBlobIDRemoval = pathToBlobIDRemoval;
     }
 
+    public Map<String, Track> getPathToTrack() {
+        return pathToTrack;
+    }
+
     public void clearFileMapping() {
         this.pathToBlobIDAddition.clear();
         this.pathToBlobIDRemoval.clear();
@@ -47,4 +52,10 @@ public class Stage implements Serializable {
     public String toString() {
         return null;
     }
+
+    @Override
+    public void dump() {
+        System.out.printf("staged: %s%nremoved: %s%ntracked: %s%n",
+                pathToBlobIDAddition, pathToBlobIDRemoval, pathToTrack.keySet());
+    }
 }
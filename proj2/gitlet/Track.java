@@ -1,7 +1,151 @@
 package gitlet;
 
-import java.io.Serializable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
-public class Track implements Serializable {
+/**
+ * The stat information of a working file, kept in the index together with
+ * the blob ID its content hashed to.  As long as the size, mtime, ctime and
+ * inode of the file are unchanged, the content is assumed to still hash to
+ * the same blob, so the file doesn't have to be read again.
+ *
+ *  @author AlexMan
+ */
+public class Track {
 
+    // Blob ID the file content hashed to when this was recorded
+    private String blobID;
+    private long size;
+    // Modification and status change time, in nanoseconds
+    private long mtime;
+    private long ctime;
+    // Inode number, 0 where the file system doesn't have one
+    private long inode;
+    // When the file was stat'ed, in nanoseconds
+    private long checkedAt;
+
+    // Coarsest mtime granularity we expect from a file system (FAT has 2 seconds)
+    private static final long RACY_WINDOW = 2000000000L;
+
+    private Track() {
+    }
+
+    Track(String blobID, long size, long mtime, long ctime, long inode, long checkedAt) {
+        this.blobID = blobID;
+        this.size = size;
+        this.mtime = mtime;
+        this.ctime = ctime;
+        this.inode = inode;
+        this.checkedAt = checkedAt;
+    }
+
+    /**
+     * Read the stat information of FILE
+     * @param file A regular file in the working directory
+     * @return A track with no blob ID yet, null if the file can't be stat'ed
+     */
+    public static Track stat(File file) {
+        try {
+            return fromAttributes(readAttributes(file.toPath()));
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    /**
+     * Read what a Track is made of in one call, along with the file type
+     * (isDirectory, isRegularFile), so a directory walk stats every entry once
+     * @param path A path in the working directory
+     * @param options LinkOption.NOFOLLOW_LINKS to stat a symbolic link itself
+     * @return The unix attributes size, lastModifiedTime, ctime and ino, or
+     *         the closest basic attributes where the file system has no unix view
+     */
+    static Map<String, Object> readAttributes(Path path, LinkOption... options) throws IOException {
+        try {
+            return Files.readAttributes(path, "unix:isDirectory,isRegularFile,size,lastModifiedTime,ctime,ino", options);
+        } catch (UnsupportedOperationException | IllegalArgumentException excp) {
+            // Not a unix file system, fall back to the basic attributes
+            BasicFileAttributes basic = Files.readAttributes(path, BasicFileAttributes.class, options);
+            Map<String, Object> attrs = new HashMap<>();
+            attrs.put("isDirectory", basic.isDirectory());
+            attrs.put("isRegularFile", basic.isRegularFile());
+            attrs.put("size", basic.size());
+            attrs.put("lastModifiedTime", basic.lastModifiedTime());
+            attrs.put("ctime", basic.creationTime());
+            attrs.put("ino", 0L);
+            return attrs;
+        }
+    }
+
+    /**
+     * Make a track out of attributes read by readAttributes
+     * @return A track with no blob ID yet
+     */
+    static Track fromAttributes(Map<String, Object> attrs) {
+        Track track = new Track();
+        track.checkedAt = System.currentTimeMillis() * 1000000L;
+        track.size = (Long) attrs.get("size");
+        track.mtime = toNanos((FileTime) attrs.get("lastModifiedTime"));
+        track.ctime = toNanos((FileTime) attrs.get("ctime"));
+        track.inode = (Long) attrs.get("ino");
+        return track;
+    }
+
+    /**
+     * Return whether the file described by CURRENT still has the content
+     * recorded in this track.  A file whose mtime was within RACY_WINDOW of
+     * the time this track was recorded is "racily clean": it may have been
+     * modified again within the same timestamp tick without its mtime
+     * changing, so it must be hashed again.
+     * @param current A fresh stat of the same path
+     */
+    public boolean isClean(Track current) {
+        return current != null
+                && blobID != null
+                && size == current.size
+                && mtime == current.mtime
+                && ctime == current.ctime
+                && inode == current.inode
+                && mtime < checkedAt - RACY_WINDOW;
+    }
+
+    public String getBlobID() {
+        return blobID;
+    }
+
+    public void setBlobID(String blobID) {
+        this.blobID = blobID;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getMtime() {
+        return mtime;
+    }
+
+    public long getCtime() {
+        return ctime;
+    }
+
+    public long getInode() {
+        return inode;
+    }
+
+    public long getCheckedAt() {
+        return checkedAt;
+    }
+
+    private static long toNanos(FileTime time) {
+        return time.to(TimeUnit.NANOSECONDS);
+    }
 }
@@ -0,0 +1,268 @@
+package gitlet;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A snapshot of one directory: its files (name -> blob ID) and its
+ * subdirectories (name -> tree ID).  Trees are content addressed like
+ * blobs, so a commit only stores the ID of its root tree, and a directory
+ * that didn't change between two commits is the very same tree object in
+ * both of them.
+ *
+ * Paths are relative to the working directory and use "/" between
+ * directory names, i.e. "src/Main.java".
+ *
+ *  @author AlexMan
+ */
+public class Tree extends GitObject {
+    static final String TYPE = "tree";
+
+    /** ID of the tree without any entries, the root tree of the initial commit. */
+    static final String EMPTY_ID = new Tree(null, new TreeMap<>()).generateID();
+
+    private String UID;
+    // Entries by name, kept sorted so that the same directory always encodes the same way
+    private TreeMap<String, Entry> entries;
+
+    /**
+     * One named entry of a directory
+     */
+    static class Entry {
+        // True for a subdirectory, false for a file
+        final boolean isTree;
+        // Tree ID of a subdirectory, blob ID of a file
+        final String UID;
+
+        Entry(boolean isTree, String UID) {
+            this.isTree = isTree;
+            this.UID = UID;
+        }
+    }
+
+    Tree(String UID, TreeMap<String, Entry> entries) {
+        this.UID = UID;
+        this.entries = entries;
+    }
+
+    /**
+     * Read the tree object given its SHA1 ID, or take it from the object
+     * cache.  The tree is shared and must not be modified.
+     * @param UID SHA1 ID of the tree
+     * @return The tree, empty for EMPTY_ID
+     */
+    public static Tree fromFile(String UID) {
+        if (UID.equals(EMPTY_ID)) {
+            return new Tree(UID, new TreeMap<>());
+        }
+        Tree tree = ObjectCache.get(UID, Tree.class);
+        if (tree == null) {
+            byte[] body = ObjectStore.readBody(UID, TYPE);
+            tree = Codec.decodeTree(UID, body);
+            ObjectCache.put(UID, tree, body.length);
+        }
+        return tree;
+    }
+
+    /**
+     * Store the tree for a whole path -> blob ID mapping
+     * @param pathToBlob Every file of the snapshot
+     * @return SHA1 ID of the root tree
+     */
+    public static String write(Map<String, String> pathToBlob) {
+        return update(EMPTY_ID, pathToBlob);
+    }
+
+    /**
+     * Store the tree obtained by applying CHANGES to the tree ROOTID.  Only
+     * the directories on the way to a changed path are read and written
+     * again, every other subtree keeps its ID.
+     * @param rootID SHA1 ID of the tree to start from
+     * @param changes path -> new blob ID, or path -> null to remove the file
+     * @return SHA1 ID of the new root tree
+     */
+    public static String update(String rootID, Map<String, String> changes) {
+        if (changes.isEmpty()) {
+            return rootID;
+        }
+        Tree tree = new Tree(null, new TreeMap<>(fromFile(rootID).entries));
+        // 1. Split the changes into files of this directory and changes below each subdirectory
+        Map<String, Map<String, String>> below = new HashMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String path = change.getKey();
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                if (change.getValue() == null) {
+                    tree.entries.remove(path);
+                } else {
+                    tree.entries.put(path, new Entry(false, change.getValue()));
+                }
+            } else {
+                below.computeIfAbsent(path.substring(0, slash), k -> new HashMap<>())
+                        .put(path.substring(slash + 1), change.getValue());
+            }
+        }
+        // 2. Rewrite the subdirectories that changed, dropping the ones left empty
+        for (Map.Entry<String, Map<String, String>> sub : below.entrySet()) {
+            Entry old = tree.entries.get(sub.getKey());
+            String oldID = old != null && old.isTree ? old.UID : EMPTY_ID;
+            String newID = update(oldID, sub.getValue());
+            if (newID.equals(EMPTY_ID)) {
+                tree.entries.remove(sub.getKey());
+            } else {
+                tree.entries.put(sub.getKey(), new Entry(true, newID));
+            }
+        }
+        return tree.save();
+    }
+
+    /**
+     * Find the blob of a single path, reading only the trees on its way
+     * @param rootID SHA1 ID of the root tree
+     * @param path i.e. "src/Main.java"
+     * @return The blob ID, null if there's no such file
+     */
+    public static String lookup(String rootID, String path) {
+        String treeID = rootID;
+        String[] names = path.split("/");
+        for (int i = 0; i < names.length; i += 1) {
+            Entry entry = fromFile(treeID).entries.get(names[i]);
+            if (entry == null || entry.isTree != (i < names.length - 1)) {
+                return null;
+            }
+            treeID = entry.UID;
+        }
+        return treeID;
+    }
+
+    /**
+     * Find what a path names in a snapshot, a file or a directory
+     * @param rootID SHA1 ID of the root tree
+     * @param path i.e. "src/Main.java" or "src"
+     * @return The blob or tree ID, null if there's nothing at PATH
+     */
+    public static String lookupEntry(String rootID, String path) {
+        String id = rootID;
+        String[] names = path.split("/");
+        for (int i = 0; i < names.length; i += 1) {
+            Entry entry = fromFile(id).entries.get(names[i]);
+            if (entry == null || (!entry.isTree && i < names.length - 1)) {
+                return null;
+            }
+            id = entry.UID;
+        }
+        return id;
+    }
+
+    /**
+     * The changes that turn the snapshot FROMID into the snapshot TOID.
+     * Subtrees with the same ID on both sides are skipped without being read.
+     * @param fromID SHA1 ID of the old root tree
+     * @param toID SHA1 ID of the new root tree
+     * @return path -> blob ID in TOID for every file that was added or
+     *         changed, path -> null for every file that was removed
+     */
+    public static Map<String, String> diff(String fromID, String toID) {
+        Map<String, String> result = new HashMap<>();
+        diff(fromID, toID, "", result);
+        return result;
+    }
+
+    private static void diff(String fromID, String toID, String prefix, Map<String, String> result) {
+        if (fromID.equals(toID)) {
+            return;
+        }
+        TreeMap<String, Entry> from = fromFile(fromID).entries;
+        TreeMap<String, Entry> to = fromFile(toID).entries;
+        for (Map.Entry<String, Entry> entry : to.entrySet()) {
+            Entry old = from.get(entry.getKey());
+            Entry now = entry.getValue();
+            String path = prefix + entry.getKey();
+            if (now.isTree) {
+                // A file replaced by a directory goes away first
+                if (old != null && !old.isTree) {
+                    result.put(path, null);
+                }
+                diff(old != null && old.isTree ? old.UID : EMPTY_ID, now.UID, path + "/", result);
+            } else if (old == null || old.isTree || !old.UID.equals(now.UID)) {
+                if (old != null && old.isTree) {
+                    diff(old.UID, EMPTY_ID, path + "/", result);
+                }
+                result.put(path, now.UID);
+            }
+        }
+        for (Map.Entry<String, Entry> entry : from.entrySet()) {
+            if (!to.containsKey(entry.getKey())) {
+                String path = prefix + entry.getKey();
+                if (entry.getValue().isTree) {
+                    diff(entry.getValue().UID, EMPTY_ID, path + "/", result);
+                } else {
+                    result.put(path, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Expand the tree ROOTID into the path -> blob ID mapping of all its files
+     */
+    public static Map<String, String> flatten(String rootID) {
+        Map<String, String> result = new HashMap<>();
+        flatten(rootID, "", result);
+        return result;
+    }
+
+    private static void flatten(String treeID, String prefix, Map<String, String> result) {
+        for (Map.Entry<String, Entry> entry : fromFile(treeID).entries.entrySet()) {
+            String path = prefix + entry.getKey();
+            if (entry.getValue().isTree) {
+                flatten(entry.getValue().UID, path + "/", result);
+            } else {
+                result.put(path, entry.getValue().UID);
+            }
+        }
+    }
+
+    /**
+     * Store this tree unless it's already in the object store
+     * @return SHA1 ID of the tree
+     */
+    private String save() {
+        byte[] body = Codec.encodeTree(this);
+        this.UID = Utils.sha1(body, TYPE);
+        if (!UID.equals(EMPTY_ID)) {
+            ObjectStore.writeObject(UID, TYPE, body);
+        }
+        return UID;
+    }
+
+    public TreeMap<String, Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Generate the SHA1 ID of this tree, determined by its encoded entries
+     */
+    public String generateID() {
+        return Utils.sha1(Codec.encodeTree(this), TYPE);
+    }
+
+    public String getUID() {
+        return UID;
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    @Override
+    public void dump() {
+        System.out.printf("tree %s%n", UID);
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            Entry e = entry.getValue();
+            System.out.printf("%s %s %s%n", e.isTree ? TYPE : Blob.TYPE, e.UID, entry.getKey());
+        }
+    }
+}
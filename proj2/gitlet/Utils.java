@@ -63,6 +63,35 @@ class Utils {
         return sha1(vals.toArray(new Object[vals.size()]));
     }
 
+    /** The length of a complete SHA-1 UID in raw bytes. */
+    static final int UID_BYTES = UID_LENGTH / 2;
+
+    /** Returns the UID_BYTES raw bytes denoted by the hexadecimal UID. */
+    static byte[] hexToBytes(String uid) {
+        byte[] result = new byte[uid.length() / 2];
+        for (int i = 0; i < result.length; i += 1) {
+            int high = Character.digit(uid.charAt(2 * i), 16);
+            int low = Character.digit(uid.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new NumberFormatException("For input string: \"" + uid + "\"");
+            }
+            result[i] = (byte) ((high << 4) | low);
+        }
+        return result;
+    }
+
+    /** Returns the lower-case hexadecimal numeral for the LEN bytes of
+     *  BYTES starting at OFFSET. */
+    static String bytesToHex(byte[] bytes, int offset, int len) {
+        char[] result = new char[2 * len];
+        for (int i = 0; i < len; i += 1) {
+            int b = bytes[offset + i] & 0xff;
+            result[2 * i] = Character.forDigit(b >>> 4, 16);
+            result[2 * i + 1] = Character.forDigit(b & 0xf, 16);
+        }
+        return new String(result);
+    }
+
     /* FILE DELETION */
 
     /** Deletes FILE if it exists and is not a directory.  Returns true
@@ -0,0 +1,170 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static gitlet.Utils.*;
+
+/**
+ * The files of the working directory, found and processed in parallel.
+ *
+ * Paths are relative to the working directory with "/" between names, as
+ * in the stage and the trees.  scan lists and stats every regular file
+ * under a directory, each subdirectory being listed by its own fork/join
+ * task, so the listing of a large tree keeps many directory reads in
+ * flight at once; walk gives the paths alone, sorted.  .gitlet is never
+ * entered and symbolic links are not followed.
+ * map then runs per-file work (stat'ing, hashing) over the same pool of
+ * worktree.workers threads (the number of processors by default).
+ *
+ *  @author AlexMan
+ */
+class WorkTree {
+
+    /** Setting for the number of threads walking and hashing the working directory. */
+    static final String WORKERS_KEY = "worktree.workers";
+
+    /**
+     * Turn a path given on the command line into a working directory path
+     * @param arg i.e. "src/../Main.java", "./src" or "."
+     * @return i.e. "Main.java", "src", or "" for the working directory itself
+     */
+    static String normalize(String arg) {
+        Path root = Repository.CWD.toPath().toAbsolutePath().normalize();
+        Path path = root.resolve(arg).normalize();
+        if (!path.startsWith(root)) {
+            throw error("File does not exist.");
+        }
+        String result = root.relativize(path).toString().replace(File.separatorChar, '/');
+        if (result.equals(Repository.GITLET_DIR.getName()) || result.startsWith(Repository.GITLET_DIR.getName() + "/")) {
+            throw error("File does not exist.");
+        }
+        return result;
+    }
+
+    /**
+     * List the regular files under DIR
+     * @param dir A working directory path, "" for all of it
+     * @return The paths of the files, sorted
+     */
+    static List<String> walk(String dir) {
+        List<String> result = new ArrayList<>(scan(dir).keySet());
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Stat the regular files under DIR, each in the same call that tells
+     * it apart from a directory
+     * @param dir A working directory path, "" for all of it
+     * @return path -> stat of the file (no blob ID), in no particular order
+     */
+    static Map<String, Track> scan(String dir) {
+        return run(new Walk(dir));
+    }
+
+    /**
+     * Apply TASK to every path in PATHS in parallel
+     * @return path -> result, leaving out the paths TASK returned null for
+     */
+    static <T> SortedMap<String, T> map(Collection<String> paths, Function<String, T> task) {
+        return run(new RecursiveTask<SortedMap<String, T>>() {
+            @Override
+            protected SortedMap<String, T> compute() {
+                return paths.parallelStream()
+                        .map(path -> new AbstractMap.SimpleEntry<>(path, task.apply(path)))
+                        .filter(entry -> entry.getValue() != null)
+                        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue,
+                                (x, y) -> x, TreeMap::new));
+            }
+        });
+    }
+
+    /**
+     * Run TASK on a new pool, passing on what it throws
+     */
+    private static <T> T run(RecursiveTask<T> task) {
+        int workers = Math.max(1, Config.getInt(WORKERS_KEY, Runtime.getRuntime().availableProcessors()));
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        try {
+            return pool.submit(task).get();
+        } catch (ExecutionException excp) {
+            if (excp.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) excp.getCause();
+            }
+            throw new IllegalStateException(excp.getCause());
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw error("Interrupted");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Lists one directory, forking a task for each of its subdirectories
+     */
+    private static class Walk extends RecursiveTask<Map<String, Track>> {
+        private static final long serialVersionUID = 1L;
+
+        private final String dir;
+
+        Walk(String dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected Map<String, Track> compute() {
+            Map<String, Track> files = new HashMap<>();
+            List<Walk> subdirs = new ArrayList<>();
+            Path path = dir.isEmpty() ? Repository.CWD.toPath() : Utils.join(Repository.CWD, dir).toPath();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    if (dir.isEmpty() && name.equals(Repository.GITLET_DIR.getName())) {
+                        continue;
+                    }
+                    String child = dir.isEmpty() ? name : dir + "/" + name;
+                    Map<String, Object> attrs;
+                    try {
+                        attrs = Track.readAttributes(entry, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException excp) {
+                        // Gone since it was listed
+                        continue;
+                    }
+                    if ((Boolean) attrs.get("isDirectory")) {
+                        Walk walk = new Walk(child);
+                        walk.fork();
+                        subdirs.add(walk);
+                    } else if ((Boolean) attrs.get("isRegularFile")) {
+                        files.put(child, Track.fromAttributes(attrs));
+                    }
+                }
+            } catch (IOException excp) {
+                // A directory that vanished or can't be read has no files to offer
+            }
+            for (Walk walk : subdirs) {
+                files.putAll(walk.join());
+            }
+            return files;
+        }
+    }
+}